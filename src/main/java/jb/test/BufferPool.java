@@ -0,0 +1,60 @@
+package jb.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe pool of read buffers. Buffer sizes are powers of two from {@link #MIN_SIZE} to {@link #MAX_SIZE}.
+ */
+class BufferPool {
+    static final int MIN_SIZE = 16 * 1024;
+    static final int MAX_SIZE = 1024 * 1024;
+
+    // Memory retained by the buffers of each size
+    private static final int MAX_RETAINED_BYTES = 16 * MAX_SIZE;
+
+    private final List<Queue<byte[]>> freeBuffers = new ArrayList<>();
+    private final List<AtomicInteger> freeCounts = new ArrayList<>();
+
+    BufferPool() {
+        for (int size = MIN_SIZE; size <= MAX_SIZE; size *= 2) {
+            freeBuffers.add(new ConcurrentLinkedQueue<>());
+            freeCounts.add(new AtomicInteger(0));
+        }
+    }
+
+    /**
+     * @return buffer of at least {@code size} bytes (but not larger than {@link #MAX_SIZE})
+     */
+    public byte[] acquire(int size) {
+        int sizeClass = getSizeClass(size);
+        byte[] buffer = freeBuffers.get(sizeClass).poll();
+        if (buffer == null)
+            return new byte[MIN_SIZE << sizeClass];
+
+        freeCounts.get(sizeClass).decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer acquired by {@link #acquire(int)} to the pool, it mustn't be used after that.
+     */
+    public void release(byte[] buffer) {
+        int sizeClass = getSizeClass(buffer.length);
+        if (freeCounts.get(sizeClass).incrementAndGet() * (long) buffer.length > MAX_RETAINED_BYTES) {
+            freeCounts.get(sizeClass).decrementAndGet();
+            return;
+        }
+        freeBuffers.get(sizeClass).offer(buffer);
+    }
+
+    private int getSizeClass(int size) {
+        int sizeClass = 0;
+        while (sizeClass < freeBuffers.size() - 1 && MIN_SIZE << sizeClass < size)
+            sizeClass++;
+        return sizeClass;
+    }
+}
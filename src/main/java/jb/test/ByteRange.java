@@ -0,0 +1,49 @@
+package jb.test;
+
+/**
+ * Range of bytes from {@code start} (inclusive) to {@code end} (exclusive).
+ */
+public class ByteRange {
+    private final long start;
+    private final long end;
+
+    public ByteRange(long start, long end) {
+        if (start < 0 || end < start)
+            throw new IllegalArgumentException();
+
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ByteRange))
+            return false;
+        ByteRange range = (ByteRange) o;
+        return start == range.start && end == range.end;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(start) * 31 + Long.hashCode(end);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%d, %d)", start, end);
+    }
+}
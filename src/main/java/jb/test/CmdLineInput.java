@@ -7,14 +7,26 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 
 public class CmdLineInput {
     private final List<URLAndFile> urls;
     private final int nThreads;
+    private final boolean resume;
+    private final int maxAttempts;
+    private final Durability durability;
+    private final long syncInterval;
+    private final Optional<String> urlList;
 
-    CmdLineInput(List<URLAndFile> urls, int nThreads) {
+    CmdLineInput(List<URLAndFile> urls, int nThreads, boolean resume, int maxAttempts, Durability durability, long syncInterval,
+                 Optional<String> urlList) {
         this.urls = urls;
         this.nThreads = nThreads;
+        this.resume = resume;
+        this.maxAttempts = maxAttempts;
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+        this.urlList = urlList;
     }
 
     public List<URLAndFile> getURLs() {
@@ -25,12 +37,49 @@ public class CmdLineInput {
         return nThreads;
     }
 
+    /**
+     * @return {@code true} if partially downloaded files should be kept and continued by the next run
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * @return maximal number of attempts to download a file without any progress
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @return amount of data written between syncs in the {@link Durability#PERIODIC} mode, in bytes
+     */
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * @return file with more URLs, see {@link URLListReader}, {@code -} for the standard input
+     */
+    public Optional<String> getURLList() {
+        return urlList;
+    }
+
     public static CmdLineInput parseCommandLine(String[] args) {
-        if (args.length < 3)
+        if (args.length < 2)
             return null;
 
         List<URLAndFile> urls = new ArrayList<>();
         int nThreads = 1;
+        boolean resume = false;
+        int maxAttempts = 1;
+        Durability durability = Durability.NONE;
+        long syncInterval = RandomAccessFileDownloadingTask.DEFAULT_SYNC_INTERVAL;
+        Optional<String> urlList = Optional.empty();
         for (int i = 0; i < args.length; ) {
             String command = args[i++];
 
@@ -57,6 +106,22 @@ public class CmdLineInput {
 
                     urls.add(new URLAndFile(url, path));
                     break;
+                case "-i":
+                    if (i >= args.length || urlList.isPresent())
+                        return null;
+
+                    urlList = Optional.of(args[i++]);
+                    break;
+                case "-m":
+                    if (i >= args.length || urls.isEmpty())
+                        return null;
+
+                    try {
+                        urls.get(urls.size() - 1).addMirror(new URL(args[i++]));
+                    } catch (MalformedURLException e) {
+                        return null;
+                    }
+                    break;
                 case "-t":
                     if (i >= args.length)
                         return null;
@@ -70,17 +135,78 @@ public class CmdLineInput {
                     if (nThreads < 1)
                         return null;
                     break;
+                case "-r":
+                    if (i >= args.length)
+                        return null;
+
+                    try {
+                        maxAttempts = Integer.parseInt(args[i++]);
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+
+                    if (maxAttempts < 1)
+                        return null;
+                    break;
+                case "-d":
+                    if (i >= args.length)
+                        return null;
+
+                    switch (args[i++]) {
+                        case "none":
+                            durability = Durability.NONE;
+                            break;
+                        case "complete":
+                            durability = Durability.ON_COMPLETE;
+                            break;
+                        case "periodic":
+                            durability = Durability.PERIODIC;
+                            break;
+                        case "rename":
+                            durability = Durability.ATOMIC_RENAME;
+                            break;
+                        default:
+                            return null;
+                    }
+                    break;
+                case "-s":
+                    if (i >= args.length)
+                        return null;
+
+                    long syncMB;
+                    try {
+                        syncMB = Long.parseLong(args[i++]);
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+
+                    if (syncMB < 1 || syncMB > Long.MAX_VALUE / (1024 * 1024))
+                        return null;
+                    syncInterval = syncMB * 1024 * 1024;
+                    break;
+                case "-c":
+                    resume = true;
+                    break;
                 default:
                     return null;
             }
         }
 
-        return new CmdLineInput(urls, nThreads);
+        if (urls.isEmpty() && !urlList.isPresent())
+            return null;
+        return new CmdLineInput(urls, nThreads, resume, maxAttempts, durability, syncInterval, urlList);
     }
 
     public static String getUsage() {
         return "Usage:\n" +
-                "    -t <count> -u <URL1> <filename1> -u <URL2> <filename2>...\n" +
-                "        saves URLs to corresponding files using <count> threads (count >= 1)";
+                "    -t <count> [-r <attempts>] [-c] [-d <mode>] [-s <MB>] [-i <list>] -u <URL1> <filename1> [-m <mirror1>...] -u <URL2> <filename2>...\n" +
+                "        saves URLs to corresponding files using <count> threads (count >= 1)\n" +
+                "        -m adds a mirror of the same content for the preceding URL\n" +
+                "        -i reads more URLs from the <list> file (- for the standard input, may be gzipped) while downloading,\n" +
+                "           a line is <URL><TAB><filename>[<TAB><mirror>...]\n" +
+                "        -r makes up to <attempts> attempts to download a file without progress (attempts >= 1)\n" +
+                "        -c keeps partially downloaded files and continues them on the next run\n" +
+                "        -d syncs files to the disk: none (default), complete (when downloaded), periodic (also every\n" +
+                "           <MB> set by -s, 64 by default) or rename (downloads to a temporary file renamed when synced)";
     }
 }
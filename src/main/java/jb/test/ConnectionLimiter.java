@@ -0,0 +1,67 @@
+package jb.test;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**<p>
+ * Limits the number of simultaneous connections per origin (scheme, host and port) and in total.
+ * </p><p>
+ * Idle connections are pooled by the keep-alive cache of {@link java.net.HttpURLConnection}: a connection
+ * returns there when its response is read to the end and the stream is closed, and is evicted after the
+ * keep-alive timeout of the server (5 seconds if not specified). The cache keeps at most
+ * {@code http.maxConnections} idle connections per origin (5 by default).
+ * </p>
+ */
+class ConnectionLimiter {
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final Map<String, Integer> connections = new HashMap<>();
+    private int total = 0;
+    private int maxPerOrigin = UNLIMITED;
+    private int maxTotal = UNLIMITED;
+
+    static String getOrigin(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol().toLowerCase(Locale.ROOT) + "://" + url.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    public synchronized void setLimits(int maxPerOrigin, int maxTotal) {
+        this.maxPerOrigin = maxPerOrigin;
+        this.maxTotal = maxTotal;
+        notifyAll();
+    }
+
+    public synchronized boolean isAvailable(URL url) {
+        return total < maxTotal && connections.getOrDefault(getOrigin(url), 0) < maxPerOrigin;
+    }
+
+    /**
+     * Takes a connection slot if there is a free one.
+     *
+     * @return {@code true} if the slot is taken, it should be released by {@link #release(URL)}
+     */
+    public synchronized boolean tryAcquire(URL url) {
+        if (!isAvailable(url))
+            return false;
+
+        connections.merge(getOrigin(url), 1, Integer::sum);
+        total++;
+        return true;
+    }
+
+    /**
+     * Waits for a free connection slot and takes it.
+     */
+    public synchronized void acquire(URL url) throws InterruptedException {
+        while (!tryAcquire(url))
+            wait();
+    }
+
+    public synchronized void release(URL url) {
+        connections.computeIfPresent(getOrigin(url), (origin, count) -> count > 1 ? count - 1 : null);
+        total--;
+        notifyAll();
+    }
+}
@@ -1,7 +1,10 @@
 package jb.test;
 
 import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 
 
 /**
@@ -32,6 +35,20 @@ public interface Downloader extends Closeable {
      */
     void run(Collection<? extends DownloadingTask> tasks, int nThreads) throws InterruptedException;
 
+    /**<p>
+     * Downloads the tasks taken from the iterator, same as {@link #run(Collection, int)} otherwise.
+     * </p><p>
+     * The default implementation takes all tasks before the downloading is started,
+     * implementations may take them only when they're about to be downloaded.
+     * </p>
+     * @param tasks tasks to download, the iterator is used by the calling thread only
+     */
+    default void run(Iterator<? extends DownloadingTask> tasks, int nThreads) throws InterruptedException {
+        List<DownloadingTask> list = new ArrayList<>();
+        tasks.forEachRemaining(list::add);
+        run(list, nThreads);
+    }
+
     /**<p>
      * Reports current downloading progress.
      * </p><p>
@@ -2,40 +2,139 @@ package jb.test;
 
 import jb.test.util.Event;
 
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
+import java.net.URL;
 import java.net.URLConnection;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.util.*;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class DownloaderImpl implements Downloader {
 
-    private static final int BUFFER_SIZE = 1024;
+    // Period of request throughput checks, ms
+    private static final long WATCHDOG_INTERVAL = 1000;
 
-    private class FutureRequest {
-        public Future<?> future;
+    // Default maximal number of simultaneous HEAD requests
+    static final int DEFAULT_PROBE_CONCURRENCY = 8;
+
+    // A mirror this many times slower than the fastest one of the task is dropped
+    private static final int SLOW_MIRROR_RATIO = 10;
+
+    // Default number of TLS sessions kept for resumption, a session per origin is enough
+    static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 1024;
+
+    // Maximal number of simultaneous DNS lookups, and of connections opened ahead
+    private static final int PREFETCH_CONCURRENCY = 16;
+
+    // Tasks are taken from the list while fewer segments are queued, only they get their downloading state
+    private static final int MAX_QUEUED_SEGMENTS = 1024;
+
+    // Hosts of this many next tasks of the list are looked up before the tasks are taken
+    static final int LOOKUP_WINDOW = 64;
+
+    // Default maximal number of tasks taken from an iterator which are downloaded at once
+    static final int DEFAULT_MAX_STREAMED_TASKS = 4096;
+
+    // Splitting a task into segments smaller than that isn't worth an extra connection
+    static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private class Request {
+        public final Segment segment;
+        public final Mirror mirror;
+        public volatile boolean cancelled = false;
+        // bytes received from the connection, is updated by the downloading thread only
+        public volatile long received = 0;
+
+        // throughput watchdog state
+        public long lastReceived = 0;
+        public boolean measured = false;
+        public boolean stalled = false;
+        public boolean hedged = false;
+
+        Request(Segment segment, Mirror mirror) {
+            this.segment = segment;
+            this.mirror = mirror;
+        }
+    }
+
+    /**
+     * Wraps an exception thrown by a task callback, such errors are never retried
+     */
+    private static class CallbackException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        CallbackException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
     }
 
     private enum State {
         NOT_STARTED, RUNNING, STOPPED
     }
 
-    private ThreadPoolExecutor executor;
+    private ExecutorService executor;
+    private ThreadPoolExecutor probeExecutor;
+    private volatile int probeConcurrency = DEFAULT_PROBE_CONCURRENCY;
+    private volatile boolean probeEnabled = true;
+    private volatile int maxStreamedTasks = DEFAULT_MAX_STREAMED_TASKS;
+    private ThreadPoolExecutor prewarmExecutor;
+    // separate from the prewarm threads, which wait for the lookups
+    private ThreadPoolExecutor lookupExecutor;
+    private HostResolver resolver;
+    private volatile int prewarmedConnections = 0;
+    private ScheduledExecutorService scheduler;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private volatile int connectTimeout = 0;
+    private volatile int readTimeout = 0;
+    private volatile long minThroughput = 0;
 
     private volatile State runningState = State.NOT_STARTED;
     private final Object stateLock = new Object();
 
     // parts of synchronized state
-    private final HashSet<FutureRequest> activeRequests = new HashSet<>();
-    private final Deque<DownloadingTask> idleTasks = new ArrayDeque<>();
+    private final HashSet<Request> activeRequests = new HashSet<>();
+    private final SegmentQueue idleSegments = new SegmentQueue();
+    private int pendingRetries = 0;
+    private int pendingProbes = 0;
+    private int pendingPrewarms = 0;
     private int nThreads;
+    private boolean sourceEnded = true;
 
-    private final HashMap<DownloadingTask, ProgressData> progress = new HashMap<>();
+    // read by the thread of run() only
+    private Iterator<? extends DownloadingTask> source = Collections.emptyIterator();
+    // next tasks of the source, their hosts are being looked up
+    private final Deque<DownloadingTask> lookahead = new ArrayDeque<>();
+    private boolean sourceDrained = false;
+    private RuntimeException sourceFailure = null;
+
+    private volatile ProgressTable progress = new ProgressTable(0);
+    private volatile TaskIndex taskIndex = new TaskIndex(new DownloadingTask[0]);
+    // rows of the tasks taken from an iterator while they're downloaded
+    private final ConcurrentHashMap<DownloadingTask, Integer> streamedRows = new ConcurrentHashMap<>();
+    private final BufferPool bufferPool = new BufferPool();
+    private final ConnectionLimiter connections = new ConnectionLimiter();
+    private volatile SSLContext sslContext = null;
+    private volatile int tlsSessionCacheSize = DEFAULT_TLS_SESSION_CACHE_SIZE;
+    private TlsSocketFactory tlsSocketFactory;
 
     private final Event changedEvent = new Event();
 
@@ -49,64 +148,286 @@ public class DownloaderImpl implements Downloader {
 
     @Override
     public void run(Collection<? extends DownloadingTask> tasks, int nThreads) throws InterruptedException {
+        start(nThreads);
+
+        // a task is numbered by its position, objects are created only for the tasks being downloaded
+        DownloadingTask[] taskArray = tasks.toArray(new DownloadingTask[0]);
+        progress = new ProgressTable(taskArray.length);
+        taskIndex = new TaskIndex(taskArray);
+        download(Arrays.asList(taskArray).iterator());
+    }
+
+    /**
+     * Takes the tasks from the iterator only when there's room for them, so the memory taken by the downloader
+     * doesn't depend on the number of tasks. At most {@value #DEFAULT_MAX_STREAMED_TASKS} tasks are downloaded at once,
+     * their progress is available by {@link #getProgress(DownloadingTask)} only meanwhile. Up to {@value #LOOKUP_WINDOW}
+     * more tasks are read ahead to look up their hosts. The total progress is unknown until the iterator ends.
+     *
+     * @throws RuntimeException thrown by the iterator, after the tasks taken before are finished
+     */
+    @Override
+    public void run(Iterator<? extends DownloadingTask> tasks, int nThreads) throws InterruptedException {
+        start(nThreads);
+        progress = ProgressTable.createRecycling(maxStreamedTasks);
+        download(tasks);
+    }
+
+    private void start(int nThreads) {
         synchronized (stateLock) {
             if (runningState != State.NOT_STARTED)
                 throw new IllegalStateException("Can only be ran once"); // todo
             runningState = State.RUNNING;
         }
 
-        executor = new ThreadPoolExecutor(nThreads, nThreads, Long.MAX_VALUE, TimeUnit.NANOSECONDS, new LinkedBlockingDeque<>());
+        tlsSocketFactory = createTlsSocketFactory();
+        prewarmExecutor = new ThreadPoolExecutor(PREFETCH_CONCURRENCY, PREFETCH_CONCURRENCY, Long.MAX_VALUE, TimeUnit.NANOSECONDS, new LinkedBlockingDeque<>());
+        lookupExecutor = new ThreadPoolExecutor(PREFETCH_CONCURRENCY, PREFETCH_CONCURRENCY, Long.MAX_VALUE, TimeUnit.NANOSECONDS, new LinkedBlockingDeque<>());
+        resolver = new HostResolver(lookupExecutor);
+        executor = createExecutor(nThreads);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(this::checkThroughput, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
         this.nThreads = nThreads;
+    }
 
-        // todo: it should be tasks too
-        for (DownloadingTask task : tasks) {
-            ProgressData progressData = new ProgressData();
-            progress.put(task, progressData);
-            try {
-                HttpURLConnection conn = (HttpURLConnection) task.getURL().openConnection();
-                conn.setRequestMethod("HEAD");
-                int respCode = conn.getResponseCode();
-                if (respCode / 100 != 2)
-                    throw new IOException(String.format("Can't reach %s (HTTP response code %d)", task.getURL(), respCode));
-                long length = conn.getContentLengthLong();
-                if (length >= 0)
-                    progressData.setTotalBytes(length);
-
-                idleTasks.add(task);
-            } catch (IOException e) {
-                task.onFailure(e);
-            }
+    private void download(Iterator<? extends DownloadingTask> tasks) throws InterruptedException {
+        // a task is queued for downloading as soon as its own probe returns
+        int nProbeThreads = probeConcurrency;
+        probeExecutor = new ThreadPoolExecutor(nProbeThreads, nProbeThreads, Long.MAX_VALUE, TimeUnit.NANOSECONDS, new LinkedBlockingDeque<>());
+        source = tasks;
+        synchronized (this) {
+            sourceEnded = false;
         }
 
         while (runningState != State.STOPPED && update()) {
-            changedEvent.waitFor();
+            if (!takeTasks())
+                changedEvent.waitFor();
         }
 
         synchronized (stateLock) {
             awaitTermination();
         }
+        if (sourceFailure != null)
+            throw sourceFailure;
     }
 
-    @Override
-    public Progress getProgress() {
-        // Note: don't care about any changes in progress while collecting it
-        // it would represent the valid state at some point in time anyways
+    /**
+     * Starts probes of the next tasks of the source while there's room for them.
+     * The source is read without the lock held, so a slow source doesn't stall the running requests.
+     *
+     * @return {@code true} if any task is taken or the source has ended
+     */
+    private boolean takeTasks() {
+        boolean taken = false;
+        while (true) {
+            synchronized (this) {
+                if (sourceEnded || runningState != State.RUNNING || pendingProbes >= probeConcurrency
+                        || idleSegments.size() >= MAX_QUEUED_SEGMENTS)
+                    return taken;
+            }
 
-        long downloaded = 0;
-        Optional<Long> sum = Optional.of(0L);
-        for (ProgressData d : progress.values()) {
-            downloaded += d.getDownloadedBytes();
+            // the end of the source is noticed even if there are no free rows
+            fillLookahead();
+            if (!lookahead.isEmpty() && !progress.hasFreeRow())
+                return taken;
 
-            if (sum.isPresent()) {
-                Optional<Long> total = d.getTotalBytes();
-                if (total.isPresent())
-                    sum = Optional.of(sum.get() + total.get());
-                else
-                    sum = Optional.empty();
+            DownloadingTask task = lookahead.poll();
+            synchronized (this) {
+                if (task != null) {
+                    startProbe(task);
+                } else {
+                    sourceEnded = true;
+                    progress.onSourceEnded();
+                }
             }
+            taken = true;
         }
+    }
+
+    /**
+     * Reads the source up to {@value #LOOKUP_WINDOW} tasks ahead and starts lookups of their hosts,
+     * so only the hosts of the next tasks are looked up and cached.
+     */
+    private void fillLookahead() {
+        while (!sourceDrained && lookahead.size() < LOOKUP_WINDOW) {
+            try {
+                if (!source.hasNext()) {
+                    sourceDrained = true;
+                    return;
+                }
+                DownloadingTask task = source.next();
+                lookahead.add(task);
 
-        return new Progress(downloaded, sum);
+                Set<String> hosts = new HashSet<>();
+                hosts.add(task.getURL().getHost());
+                for (URL mirror : task.getMirrors())
+                    hosts.add(mirror.getHost());
+                resolver.prefetch(hosts);
+            } catch (RuntimeException e) {
+                // the tasks taken before are finished anyway
+                sourceFailure = e;
+                sourceDrained = true;
+            }
+        }
+    }
+
+    @Override
+    public Progress getProgress() {
+        // the tasks add their changes to the totals, so they aren't walked here
+        return progress.getProgress();
+    }
+
+    /**
+     * Reports downloading progress and TLS handshake time of a single task.
+     *
+     * @throws IllegalArgumentException if the task isn't downloaded by {@link #run(Collection, int)}
+     *                                  or it isn't being downloaded by {@link #run(Iterator, int)}
+     */
+    public Progress getProgress(DownloadingTask task) {
+        // the table is replaced before the index
+        int index = taskIndex.indexOf(task);
+        if (index < 0) {
+            Integer row = streamedRows.get(task);
+            if (row == null)
+                throw new IllegalArgumentException("Unknown task");
+            index = row;
+        }
+        return progress.getProgress(index);
+    }
+
+    /**<p>
+     * Sets the context of HTTPS connections, a new context with the default trust settings by default.
+     * Takes effect on the next {@link #run(Collection, int)}.
+     * </p><p>
+     * All connections share the client session cache of the context, so new connections to an origin resume
+     * the TLS session negotiated before (abbreviated handshake without certificate exchange).
+     * The cache of the context is resized to {@link #setTlsSessionCacheSize(int)}.
+     * </p>
+     */
+    public void setSSLContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Sets the number of TLS sessions kept for resumption, {@value #DEFAULT_TLS_SESSION_CACHE_SIZE} by default,
+     * zero means unlimited. Takes effect on the next {@link #run(Collection, int)}.
+     */
+    public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+        if (tlsSessionCacheSize < 0)
+            throw new IllegalArgumentException("tlsSessionCacheSize < 0");
+
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+    }
+
+    /**
+     * Sets the policy of retrying failed requests, {@link RetryPolicy#NONE} by default.
+     * Retries continue from the last downloaded byte if the server supports byte ranges.
+     * Failed HEAD requests of a task are retried by the same policy.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets timeouts of all requests, zero means infinite timeout (default).
+     *
+     * @param connectTimeout timeout of connection establishment in milliseconds
+     * @param readTimeout    maximal time of waiting for the response or the next data in milliseconds
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        if (connectTimeout < 0 || readTimeout < 0)
+            throw new IllegalArgumentException();
+
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**<p>
+     * Sets the minimal acceptable throughput of a request, zero (default) disables throughput checks.
+     * </p><p>
+     * A segment of a {@link SegmentedDownloadingTask} which is downloaded slower is requested
+     * once again from its current position by an idle thread (hedged request), the request which
+     * finishes first is used. Other slow requests are restarted from the current position if
+     * the server supports byte ranges. A slow request is stopped when it receives the next chunk
+     * of data, so connections which don't send anything should be limited by the read timeout
+     * (see {@link #setTimeouts(int, int)}).
+     * </p>
+     *
+     * @param bytesPerSecond minimal throughput
+     */
+    public void setMinThroughput(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException();
+
+        this.minThroughput = bytesPerSecond;
+    }
+
+    /**
+     * Sets the maximal number of simultaneous HEAD requests sent before the downloading of tasks,
+     * {@value #DEFAULT_PROBE_CONCURRENCY} by default. Takes effect on the next {@link #run(Collection, int)}.
+     */
+    public void setProbeConcurrency(int probeConcurrency) {
+        if (probeConcurrency < 1)
+            throw new IllegalArgumentException("probeConcurrency < 1");
+
+        this.probeConcurrency = probeConcurrency;
+    }
+
+    /**
+     * Sets the maximal number of tasks taken from an iterator which are downloaded at once.
+     */
+    void setMaxStreamedTasks(int maxStreamedTasks) {
+        if (maxStreamedTasks < 1)
+            throw new IllegalArgumentException("maxStreamedTasks < 1");
+        this.maxStreamedTasks = maxStreamedTasks;
+    }
+
+    /**<p>
+     * Enables or disables HEAD requests before the downloading of tasks, enabled by default.
+     * </p><p>
+     * Without them every task costs a single request: its status code and headers are used instead,
+     * the progress total of a task is known only after its response arrives. A {@link SegmentedDownloadingTask}
+     * is split into segments only after the response reveals the content length and byte ranges support,
+     * {@link SegmentedDownloadingTask#getCompletedRanges(long, Optional)} isn't called.
+     * </p>
+     */
+    public void setProbeEnabled(boolean probeEnabled) {
+        this.probeEnabled = probeEnabled;
+    }
+
+    /**<p>
+     * Limits the number of simultaneous connections (both HEAD and GET requests) to a single origin
+     * (scheme, host and port) and in total, unlimited ({@link Integer#MAX_VALUE}) by default. Tasks of an origin which has no free
+     * connections wait in the queue while tasks of other origins are downloaded.
+     * </p><p>
+     * Connections are reused through the keep-alive cache of {@link HttpURLConnection}, which keeps
+     * up to {@code http.maxConnections} idle connections per origin (5 by default), so a limit per origin
+     * not larger than that lets consecutive requests to the origin skip connection and TLS handshakes.
+     * </p>
+     */
+    public void setConnectionLimits(int maxPerHost, int maxTotal) {
+        if (maxPerHost < 1 || maxTotal < 1)
+            throw new IllegalArgumentException();
+
+        connections.setLimits(maxPerHost, maxTotal);
+        changedEvent.fire();
+    }
+
+    /**<p>
+     * Sets the maximal number of connections opened ahead for the next queued tasks while all threads are busy,
+     * 0 (disabled) by default.
+     * </p><p>
+     * A connection is opened by a HEAD request to an origin which has no running requests, so no connection
+     * of its own is going to be released soon. It waits in the keep-alive cache of {@link HttpURLConnection}
+     * (for the keep-alive timeout of the server) until a thread takes the task, which then skips
+     * the connection and TLS handshakes. Opening connections counts against the connection limits.
+     * </p>
+     */
+    public void setPrewarmedConnections(int count) {
+        if (count < 0)
+            throw new IllegalArgumentException("count < 0");
+
+        this.prewarmedConnections = count;
+        changedEvent.fire();
     }
 
     @Override
@@ -115,91 +436,790 @@ public class DownloaderImpl implements Downloader {
             throw new IllegalArgumentException("nThreads < 1");
 
         this.nThreads = nThreads;
-        if (executor != null) {
-            executor.setCorePoolSize(nThreads);
-            executor.setMaximumPoolSize(nThreads);
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            // core size can't exceed maximum size on newer JDKs
+            if (nThreads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(nThreads);
+                pool.setCorePoolSize(nThreads);
+            } else {
+                pool.setCorePoolSize(nThreads);
+                pool.setMaximumPoolSize(nThreads);
+            }
         }
         changedEvent.fire();
     }
 
+    private TlsSocketFactory createTlsSocketFactory() {
+        SSLContext context = sslContext;
+        if (context == null) {
+            try {
+                context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("TLS isn't available", e);
+            }
+        }
+        context.getClientSessionContext().setSessionCacheSize(tlsSessionCacheSize);
+        return new TlsSocketFactory(context.getSocketFactory());
+    }
+
+    /**<p>
+     * Creates the executor running the requests, one task per request.
+     * </p><p>
+     * The number of simultaneous requests is limited by the threads count regardless of the executor,
+     * so an executor starting a thread per task doesn't make the downloader exceed it.
+     * A {@link ThreadPoolExecutor} is resized on {@link #setThreadsCount(int)}.
+     * </p>
+     * @param nThreads initial threads count
+     */
+    protected ExecutorService createExecutor(int nThreads) {
+        return new ThreadPoolExecutor(nThreads, nThreads, Long.MAX_VALUE, TimeUnit.NANOSECONDS, new LinkedBlockingDeque<>());
+    }
+
     private synchronized boolean update() {
-        if (idleTasks.isEmpty() && activeRequests.isEmpty())
+        if (isFinished())
             return false;
 
         while (activeRequests.size() > nThreads)
             cancelRequest();
 
-        while (activeRequests.size() < nThreads && !idleTasks.isEmpty()) {
-            DownloadingTask nextTask = idleTasks.remove();
-            addRequest(nextTask);
+        // hosts take turns, segments of hosts without free connections stay queued
+        if (activeRequests.size() < nThreads) {
+            idleSegments.serve(nextSegment -> nextSegment.getState().isFailed()
+                    || activeRequests.size() < nThreads && tryAddRequest(nextSegment, chooseMirror(nextSegment.getState(), null)));
+        }
+        // the segments of failed tasks are dropped by serving, they may have been the last ones
+        if (isFinished())
+            return false;
+
+        for (Request req : new ArrayList<>(activeRequests)) {
+            if (activeRequests.size() >= nThreads)
+                break;
+            if (req.stalled && !req.hedged && !req.cancelled && req.segment.getState().isSegmented()
+                    && req.segment.getRequestCount() == 1 && !req.segment.isComplete()) {
+                req.hedged = tryAddRequest(req.segment, chooseMirror(req.segment.getState(), req.mirror));
+            }
+        }
+
+        while (activeRequests.size() < nThreads) {
+            Segment stolenSegment = splitLargestSegment();
+            if (stolenSegment == null)
+                break;
+            if (!tryAddRequest(stolenSegment, chooseMirror(stolenSegment.getState(), null))) {
+                // a probe has taken the connection
+                idleSegments.add(stolenSegment);
+                break;
+            }
+        }
+
+        if (activeRequests.size() >= nThreads && !idleSegments.isEmpty())
+            prewarmConnections();
+
+        return true;
+    }
+
+    /**
+     * @return {@code true} if there's nothing left to download
+     */
+    private boolean isFinished() {
+        return idleSegments.isEmpty() && activeRequests.isEmpty() && pendingRetries == 0 && pendingProbes == 0 && sourceEnded;
+    }
+
+    /**
+     * Opens connections for the next queued segments of origins without running requests.
+     */
+    private void prewarmConnections() {
+        int count = prewarmedConnections;
+        if (pendingPrewarms >= count)
+            return;
+
+        Set<String> busyOrigins = new HashSet<>();
+        for (Request req : activeRequests)
+            busyOrigins.add(ConnectionLimiter.getOrigin(req.mirror.getURL()));
+        for (Segment segment : idleSegments.peek(count)) {
+            if (pendingPrewarms >= count)
+                break;
+            Mirror mirror = chooseMirror(segment.getState(), null);
+            if (segment.getState().isFailed() || busyOrigins.contains(ConnectionLimiter.getOrigin(mirror.getURL()))
+                    || !connections.isAvailable(mirror.getURL()) || !segment.setPrewarmed())
+                continue;
+            if (!connections.tryAcquire(mirror.getURL()))
+                continue;
+
+            pendingPrewarms++;
+            prewarmExecutor.execute(() -> prewarm(segment.getState(), mirror));
+        }
+    }
+
+    /**
+     * Sends a HEAD request to the mirror, its connection returns to the keep-alive cache.
+     */
+    private void prewarm(TaskState state, Mirror mirror) {
+        try {
+            if (runningState == State.RUNNING) {
+                HttpURLConnection conn = (HttpURLConnection) openConnection(mirror.getURL());
+                conn.setRequestMethod("HEAD");
+                connect(conn, state.getProgress());
+                if (conn.getResponseCode() / 100 != 2)
+                    discardErrorStream(conn);
+            }
+        } catch (IOException e) {
+            // the request of the segment runs into the same error and handles it
+        } finally {
+            connections.release(mirror.getURL());
+            synchronized (this) {
+                pendingPrewarms--;
+                changedEvent.fire();
+            }
+        }
+    }
+
+    /**
+     * Splits the largest remaining range among the running requests in halves,
+     * so an idle thread could download the second one.
+     *
+     * @return segment for the second half, {@code null} if there's nothing to split
+     */
+    private Segment splitLargestSegment() {
+        Segment largest = null;
+        long largestRemaining = 0;
+        for (Request req : activeRequests) {
+            long remaining = req.segment.getRemaining();
+            if (req.segment.getState().isSegmented() && remaining > largestRemaining
+                    && connections.isAvailable(chooseMirror(req.segment.getState(), null).getURL())) {
+                largest = req.segment;
+                largestRemaining = remaining;
+            }
+        }
+        return largest != null ? largest.split(MIN_SEGMENT_SIZE) : null;
+    }
+
+    /**
+     * Creates the downloading state of the task and probes it.
+     */
+    private void startProbe(DownloadingTask task) {
+        ProgressTable table = progress;
+        int row = table.acquire();
+        TaskState state = new TaskState(task, table.get(row));
+        if (table.isRecycling()) {
+            streamedRows.put(task, row);
+            state.setFinishListener(() -> {
+                streamedRows.remove(task, row);
+                table.release(row);
+                changedEvent.fire();
+            });
+        }
+        submitProbe(state);
+    }
+
+    private void submitProbe(TaskState state) {
+        pendingProbes++;
+        try {
+            probeExecutor.execute(() -> probeTask(state));
+        } catch (RejectedExecutionException e) {
+            // the downloader is closed, the task isn't started
+            pendingProbes--;
+        }
+    }
+
+    /**
+     * Probes the task and queues its segments.
+     */
+    private void probeTask(TaskState state) {
+        DownloadingTask task = state.getTask();
+        try {
+            if (runningState == State.RUNNING && !probeEnabled) {
+                // the first GET response is used instead
+                synchronized (this) {
+                    addSegments(state, -1, Collections.emptyList());
+                }
+            } else if (runningState == State.RUNNING) {
+                long length = probe(state);
+                List<ByteRange> completed = Collections.emptyList();
+                if (state.isSegmented() && length > 0)
+                    completed = ((SegmentedDownloadingTask) task).getCompletedRanges(length, state.getValidator());
+                synchronized (this) {
+                    addSegments(state, length, completed);
+                }
+            }
+        } catch (InterruptedIOException e) {
+            // the downloader is closed, the task wasn't started
+        } catch (IOException e) {
+            if (!scheduleProbeRetry(state, e))
+                state.fail(e);
+        } finally {
+            synchronized (this) {
+                pendingProbes--;
+                changedEvent.fire();
+            }
+        }
+    }
+
+    /**
+     * Requests the content length and the validator from the first reachable mirror of the task.
+     *
+     * @return content length, -1 if unknown
+     * @throws IOException error of the last mirror tried, the errors of the others are suppressed by it
+     */
+    private long probe(TaskState state) throws IOException {
+        List<IOException> failures = new ArrayList<>();
+        for (Mirror mirror : state.getMirrors()) {
+            // the last mirror is never dropped
+            if (mirror.isDropped())
+                continue;
+            acquireConnection(mirror.getURL());
+            try {
+                HttpURLConnection conn = (HttpURLConnection) openConnection(mirror.getURL());
+                conn.setRequestMethod("HEAD");
+                connect(conn, state.getProgress());
+                int respCode = conn.getResponseCode();
+                if (respCode / 100 != 2) {
+                    discardErrorStream(conn);
+                    throw new HttpStatusException(String.format("Can't reach %s (HTTP response code %d)", mirror.getURL(), respCode),
+                            respCode, RetryPolicy.parseRetryAfter(conn.getHeaderField("Retry-After")));
+                }
+                long length = conn.getContentLengthLong();
+                if (length >= 0)
+                    state.getProgress().setTotalBytes(length);
+                state.setRangesSupported("bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges")));
+                state.setValidator(getValidator(conn));
+                mirror.setProbed();
+                return length;
+            } catch (IOException e) {
+                failures.add(e);
+                state.dropMirror(mirror);
+            } finally {
+                connections.release(mirror.getURL());
+                changedEvent.fire();
+            }
         }
+        IOException failure = failures.get(failures.size() - 1);
+        for (IOException e : failures.subList(0, failures.size() - 1))
+            failure.addSuppressed(e);
+        throw failure;
+    }
+
+    /**
+     * Schedules the failed probe to be sent again after a delay if the retry policy allows.
+     *
+     * @return {@code true} if the retry is scheduled
+     */
+    private boolean scheduleProbeRetry(TaskState state, IOException cause) {
+        if (runningState != State.RUNNING)
+            return false;
+
+        int attempt = state.onProbeFailed();
+        RetryPolicy policy = retryPolicy;
+        if (!policy.shouldRetry(attempt, cause))
+            return false;
 
+        synchronized (this) {
+            pendingRetries++;
+        }
+        try {
+            scheduler.schedule(() -> onProbeRetryDue(state), policy.getDelay(attempt, cause), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the downloader is being closed
+        }
         return true;
     }
 
-    private void processTask(DownloadingTask task, ProgressData progressData, FutureRequest req) {
+    private synchronized void onProbeRetryDue(TaskState state) {
+        pendingRetries--;
+        submitProbe(state);
+        changedEvent.fire();
+    }
+
+    /**
+     * Waits for a free connection to the origin of {@code url}.
+     *
+     * @throws InterruptedIOException if the downloader is closed meanwhile
+     */
+    private void acquireConnection(URL url) throws InterruptedIOException {
         try {
-            URLConnection conn = task.getURL().openConnection();
+            connections.acquire(url);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Downloader is closed");
+        }
+    }
+
+    /**
+     * Reads the body of an error response, so the connection can be reused.
+     */
+    private static void discardErrorStream(HttpURLConnection conn) {
+        try (InputStream errorStream = conn.getErrorStream()) {
+            if (errorStream == null)
+                return;
+            byte[] buffer = new byte[BufferPool.MIN_SIZE];
+            while (errorStream.read(buffer) != -1) {
+                // skip
+            }
+        } catch (IOException e) {
+            // the connection is closed then
+        }
+    }
+
+    /**
+     * @return strong ETag or Last-Modified header value
+     */
+    private static Optional<String> getValidator(URLConnection conn) {
+        String eTag = conn.getHeaderField("ETag");
+        if (eTag != null && !eTag.startsWith("W/"))
+            return Optional.of(eTag);
+        return Optional.ofNullable(conn.getHeaderField("Last-Modified"));
+    }
+
+    /**
+     * Creates segments for the parts of the task which aren't {@code completed} yet.
+     */
+    private void addSegments(TaskState state, long length, List<ByteRange> completed) {
+        if (!state.isSegmented() || length <= 0) {
+            idleSegments.add(state.createSegment(0, -1));
+            return;
+        }
+
+        if (completed.isEmpty()) {
+            long count = Math.max(1, Math.min(nThreads, length / MIN_SEGMENT_SIZE));
+            for (long i = 0; i < count; ++i)
+                idleSegments.add(state.createSegment(length * i / count, length * (i + 1) / count));
+            return;
+        }
+
+        long position = 0;
+        for (ByteRange range : completed) {
+            if (range.getStart() > position)
+                idleSegments.add(state.createSegment(position, range.getStart()));
+            state.getProgress().addDownloadedBytes(range.getLength());
+            position = Math.max(position, range.getEnd());
+        }
+        if (position < length)
+            idleSegments.add(state.createSegment(position, length));
+        else
+            state.finish(Optional.of(length));
+    }
+
+    private URLConnection openConnection(URL url) throws IOException {
+        try {
+            // the connection finds the result in the JVM's cache
+            resolver.resolve(url.getHost());
+        } catch (UnknownHostException e) {
+            // the connection reports it, unless it goes through a proxy which resolves the host
+        }
+        URLConnection conn = url.openConnection();
+        if (conn instanceof HttpsURLConnection)
+            ((HttpsURLConnection) conn).setSSLSocketFactory(tlsSocketFactory);
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        return conn;
+    }
+
+    /**
+     * Establishes the connection or takes an idle one from the keep-alive cache,
+     * the handshake time of a new TLS connection is added to the task progress.
+     */
+    private static void connect(URLConnection conn, ProgressData progressData) throws IOException {
+        TlsSocketFactory.resetHandshake();
+        conn.connect();
+        long handshakeNanos = TlsSocketFactory.takeHandshakeNanos();
+        if (handshakeNanos >= 0)
+            progressData.addHandshake(handshakeNanos);
+    }
+
+    private void processSegment(Request req) {
+        Segment segment = req.segment;
+        TaskState state = segment.getState();
+        DownloadingTask task = state.getTask();
+        ProgressData progressData = state.getProgress();
+        boolean segmented = state.isSegmented();
+        long cursor = segment.getPosition();
+        boolean progressed = false;
+        try {
+            URLConnection conn = openConnection(req.mirror.getURL());
+            boolean ranged = segmented || cursor > 0;
+            if (ranged) {
+                conn.setRequestProperty("Range", getRangeHeader(cursor, segment.getEnd()));
+                // validators of different mirrors don't match
+                if (state.getValidator().isPresent() && req.mirror.isProbed())
+                    conn.setRequestProperty("If-Range", state.getValidator().get());
+            }
+            connect(conn, progressData);
 
-            long length = conn.getContentLengthLong();
             Optional<Long> lengthOpt = Optional.empty();
-            if (length >= 0) {
-                progressData.setTotalBytes(length);
-                lengthOpt = Optional.of(length);
-            }
-            task.onStart(lengthOpt);
-
-            InputStream remoteContentStream = conn.getInputStream();
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            while ((bytesRead = remoteContentStream.read(buffer)) != -1) {
-                if (runningState != State.RUNNING) {
-                    remoteContentStream.close();
-                    progressData.resetDownloadedBytes();
-                    task.onDiscard();
-                    onTaskFinished(task, req, false);
-                    return;
-                } else if (Thread.interrupted()) {
-                    remoteContentStream.close();
-                    progressData.resetDownloadedBytes();
-                    task.onCancel();
-                    onTaskFinished(task, req, true);
-                    return;
+            if (ranged) {
+                checkResponseCode(conn, true);
+                lengthOpt = progressData.getTotalBytes();
+                if (!req.mirror.isProbed())
+                    checkMirrorLength(req.mirror, lengthOpt, getRangeTotal(conn));
+            } else {
+                checkResponseCode(conn, false);
+                long length = conn.getContentLengthLong();
+                if (!state.isProbed()) {
+                    // no HEAD request was sent, the response can enable splitting of the task
+                    state.setRangesSupported("bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges")) && length >= 0);
+                    state.setValidator(getValidator(conn));
+                    req.mirror.setProbed();
+                    segmented = state.isSegmented();
+                    if (segmented) {
+                        // idle threads can take a part of the segment
+                        segment.setEnd(length);
+                        changedEvent.fire();
+                    }
+                } else if (!req.mirror.isProbed()) {
+                    checkMirrorLength(req.mirror, progressData.getTotalBytes(), length);
+                }
+                if (length >= 0) {
+                    progressData.setTotalBytes(length);
+                    lengthOpt = Optional.of(length);
+                }
+            }
+            // makes truncated responses detectable
+            if (!segment.isBounded() && lengthOpt.isPresent())
+                segment.setEnd(lengthOpt.get());
+
+            try {
+                state.start(lengthOpt);
+            } catch (IOException e) {
+                throw new CallbackException(e);
+            }
+
+            // the buffer grows while the connection delivers more data than it fits
+            byte[] buffer = bufferPool.acquire(BufferPool.MIN_SIZE);
+            try (InputStream remoteContentStream = conn.getInputStream()) {
+                int bytesRead;
+                while (!segment.isComplete() && (bytesRead = remoteContentStream.read(buffer)) != -1) {
+                    if (runningState != State.RUNNING) {
+                        segment.removeRequest();
+                        state.onSegmentDiscarded();
+                        onRequestFinished(req, false);
+                        return;
+                    } else if (state.isFailed()) {
+                        throw new IOException("Downloading of another segment failed");
+                    } else if (req.cancelled) {
+                        if (!leaveSegment(req)) {
+                            cancelSegment(segment);
+                            onRequestFinished(req, true);
+                        }
+                        return;
+                    }
+
+                    req.received += bytesRead;
+                    ByteRange claimed = segment.claim(cursor, bytesRead);
+                    if (claimed != null) {
+                        progressed = true;
+                        progressData.addDownloadedBytes(claimed.getLength());
+                        ByteBuffer chunk = ByteBuffer.wrap(buffer, (int) (claimed.getStart() - cursor), (int) claimed.getLength())
+                                .slice().asReadOnlyBuffer();
+                        try {
+                            if (segmented)
+                                ((SegmentedDownloadingTask) task).onChunkReceived(claimed.getStart(), chunk);
+                            else
+                                task.onChunkReceived(chunk);
+                        } catch (IOException e) {
+                            throw new CallbackException(e);
+                        }
+                        if (segment.isComplete())
+                            abortHedgedRequests(req);
+                    }
+                    cursor += bytesRead;
+                    if (bytesRead == buffer.length && buffer.length < BufferPool.MAX_SIZE) {
+                        bufferPool.release(buffer);
+                        buffer = bufferPool.acquire(buffer.length * 2);
+                    }
                 }
-                progressData.addDownloadedBytes(bytesRead);
-                task.onChunkReceived(ByteBuffer.wrap(buffer, 0, bytesRead).asReadOnlyBuffer());
-                Thread.yield();
+            } finally {
+                bufferPool.release(buffer);
             }
 
-            progressData.setTotalBytes(progressData.getDownloadedBytes());
-            task.onSuccess();
-            onTaskFinished(task, req, false);
+            if (!segment.isBounded())
+                segment.setEnd(cursor);
+            else if (!segment.isComplete())
+                throw new IOException(String.format("Connection to %s closed unexpectedly", task.getURL()));
+
+            leaveSegment(req);
+        } catch (CallbackException e) {
+            segment.removeRequest();
+            state.onSegmentFailed(e.getCause());
+            onRequestFinished(req, false);
         } catch (IOException e) {
-            task.onFailure(e);
-            onTaskFinished(task, req, false);
+            if (leaveSegment(req))
+                return;
+            if (state.isFailed()) {
+                // stopped by the failure of another segment, the mirror isn't to blame
+                state.onSegmentFailed(e);
+                onRequestFinished(req, false);
+            } else if (req.cancelled || state.dropMirror(req.mirror)) {
+                // e.g. the read timeout of a stalled request, or another mirror can continue
+                try {
+                    cancelSegment(segment);
+                    onRequestFinished(req, true);
+                } catch (IOException cancelFailure) {
+                    state.onSegmentFailed(cancelFailure);
+                    onRequestFinished(req, false);
+                }
+            } else if (!scheduleRetry(req, progressed, e)) {
+                state.onSegmentFailed(e);
+                onRequestFinished(req, false);
+            }
+        }
+    }
+
+    /**
+     * Unregisters the request from its segment. The segment succeeds when it's complete
+     * and the last request downloading it leaves, so no chunk of the segment is being processed.
+     *
+     * @return {@code true} if the segment is either completed or still downloaded by another
+     * request, {@code false} if the caller should decide what to do with the segment
+     */
+    private boolean leaveSegment(Request req) {
+        Segment segment = req.segment;
+        TaskState state = segment.getState();
+        if (segment.removeRequest() > 0) {
+            state.onSegmentCancelled();
+        } else if (segment.isComplete()) {
+            if (!state.isSegmented())
+                state.getProgress().setTotalBytes(state.getProgress().getDownloadedBytes());
+            state.onSegmentSucceeded();
+        } else {
+            return false;
+        }
+
+        onRequestFinished(req, false);
+        return true;
+    }
+
+    /**
+     * Stops other requests downloading the same segment as {@code req} after the segment is complete.
+     */
+    private synchronized void abortHedgedRequests(Request req) {
+        for (Request other : activeRequests) {
+            if (other != req && other.segment == req.segment)
+                other.cancelled = true;
+        }
+    }
+
+    /**
+     * Measures throughput of the mirrors, drops slow mirrors and marks requests which are slower
+     * than {@link #minThroughput} as stalled.
+     */
+    private synchronized void checkThroughput() {
+        long minThroughput = this.minThroughput;
+        boolean changed = false;
+        for (Request req : new ArrayList<>(activeRequests)) {
+            long received = req.received;
+            long throughput = (received - req.lastReceived) * 1000 / WATCHDOG_INTERVAL;
+            req.lastReceived = received;
+            // the first interval is incomplete
+            if (!req.measured) {
+                req.measured = true;
+                continue;
+            }
+            req.mirror.addThroughputSample(throughput);
+
+            TaskState state = req.segment.getState();
+            req.stalled = throughput < minThroughput || isSlowMirror(state, req.mirror);
+            if (!req.stalled)
+                continue;
+
+            changed = true;
+            // new requests go to other mirrors, a segment is hedged from another mirror in update(),
+            // a plain request keeps its thread until the connection delivers more data or times out
+            state.dropMirror(req.mirror);
+            if (!state.isSegmented() && state.isRangesSupported())
+                req.cancelled = true;
+        }
+        if (changed)
+            changedEvent.fire();
+    }
+
+    private static boolean isSlowMirror(TaskState state, Mirror mirror) {
+        for (Mirror other : state.getMirrors()) {
+            if (!other.isDropped() && other.getThroughput() > mirror.getThroughput() * SLOW_MIRROR_RATIO)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param expected content length received from the probed mirror
+     * @param actual   content length reported by another mirror, -1 if unknown
+     * @throws IOException if the mirror serves a different content
+     */
+    private static void checkMirrorLength(Mirror mirror, Optional<Long> expected, long actual) throws IOException {
+        if (expected.isPresent() && actual >= 0 && expected.get() != actual)
+            throw new IOException(String.format("Content length of mirror %s is %d instead of %d", mirror, actual, expected.get()));
+    }
+
+    /**
+     * @return complete length from the Content-Range header, -1 if unknown
+     */
+    private static long getRangeTotal(URLConnection conn) {
+        return HttpResponseParser.parseContentRangeTotal(conn.getHeaderField("Content-Range"));
+    }
+
+    /**
+     * @param partial whether a byte range was requested
+     * @throws HttpStatusException if response code of the HTTP connection doesn't indicate success
+     */
+    private static void checkResponseCode(URLConnection conn, boolean partial) throws IOException {
+        if (!(conn instanceof HttpURLConnection))
+            return;
+
+        int respCode = ((HttpURLConnection) conn).getResponseCode();
+        if (partial ? respCode == HttpURLConnection.HTTP_PARTIAL : respCode / 100 == 2)
+            return;
+
+        discardErrorStream((HttpURLConnection) conn);
+        String message = partial
+                ? "Can't get a range of %s (HTTP response code %d)"
+                : "Can't download %s (HTTP response code %d)";
+        throw new HttpStatusException(String.format(message, conn.getURL(), respCode),
+                respCode, RetryPolicy.parseRetryAfter(conn.getHeaderField("Retry-After")));
+    }
+
+    /**
+     * Schedules the failed segment to be downloaded again after a delay if the retry policy allows.
+     * The segment is continued from the last downloaded byte if the server supports byte ranges.
+     *
+     * @return {@code true} if the retry is scheduled
+     */
+    private boolean scheduleRetry(Request req, boolean progressed, IOException cause) {
+        Segment segment = req.segment;
+        TaskState state = segment.getState();
+        if (runningState != State.RUNNING || state.isFailed())
+            return false;
+
+        int attempt = segment.onAttemptFailed(progressed);
+        RetryPolicy policy = retryPolicy;
+        if (!policy.shouldRetry(attempt, cause))
+            return false;
+
+        if (!state.isRangesSupported() && segment.getPosition() > segment.getStart()) {
+            segment.reset();
+            state.getProgress().resetDownloadedBytes();
+            try {
+                state.getTask().onCancel();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        state.onSegmentCancelled();
+
+        synchronized (this) {
+            pendingRetries++;
+            activeRequests.remove(req);
+            connections.release(req.mirror.getURL());
         }
+        try {
+            scheduler.schedule(() -> onRetryDue(segment), policy.getDelay(attempt, cause), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the downloader is being closed
+        }
+        return true;
+    }
+
+    private synchronized void onRetryDue(Segment segment) {
+        pendingRetries--;
+        // another segment of the task may have failed during the delay
+        if (!segment.getState().isFailed())
+            idleSegments.add(segment);
+        changedEvent.fire();
+    }
+
+    private static String getRangeHeader(long start, long end) {
+        if (end >= 0)
+            return String.format("bytes=%d-%d", start, end - 1);
+        else
+            return String.format("bytes=%d-", start);
     }
 
-    private void addRequest(DownloadingTask task) {
-        FutureRequest req = new FutureRequest();
+    /**
+     * Stops downloading of the segment so it can be continued later.
+     * If the server doesn't support byte ranges, the task starts over.
+     */
+    private void cancelSegment(Segment segment) throws IOException {
+        TaskState state = segment.getState();
+        if (!state.isRangesSupported()) {
+            segment.reset();
+            state.getProgress().resetDownloadedBytes();
+            state.getTask().onCancel();
+        }
+        state.onSegmentCancelled();
+    }
+
+    /**
+     * Chooses the mirror for a new request of the task: the ones which weren't measured yet are tried first,
+     * then the one with the highest throughput per request.
+     *
+     * @param avoided mirror which is used only if there's no other one
+     */
+    private Mirror chooseMirror(TaskState state, Mirror avoided) {
+        Mirror best = null;
+        double bestScore = 0;
+        for (Mirror mirror : state.getMirrors()) {
+            if (mirror.isDropped() || mirror == avoided)
+                continue;
+
+            int requests = 0;
+            for (Request req : activeRequests) {
+                if (req.mirror == mirror)
+                    requests++;
+            }
+            double score = mirror.isMeasured() ? mirror.getThroughput() / (requests + 1) : Double.MAX_VALUE / (requests + 1);
+            if (best == null || score > bestScore) {
+                best = mirror;
+                bestScore = score;
+            }
+        }
+        return best != null ? best : avoided;
+    }
+
+    /**
+     * Starts a request if the mirror's origin has a free connection.
+     *
+     * @return {@code true} if the request is started
+     */
+    private boolean tryAddRequest(Segment segment, Mirror mirror) {
+        if (!connections.tryAcquire(mirror.getURL()))
+            return false;
+
+        addRequest(segment, mirror);
+        return true;
+    }
+
+    private void addRequest(Segment segment, Mirror mirror) {
+        Request req = new Request(segment, mirror);
         activeRequests.add(req);
 
-        ProgressData progressData = progress.get(task);
-        req.future = executor.submit(() -> processTask(task, progressData, req));
+        segment.addRequest();
+        segment.getState().onSegmentStarted();
+        executor.submit(() -> processSegment(req));
     }
 
+    /**
+     * Cancels the request which would lose the least downloaded data, or the one with the least progress
+     * if no data is lost (the request can be resumed).
+     */
     private void cancelRequest() {
-        FutureRequest res;
-        res = activeRequests.iterator().next();
-        if (res != null)
-            res.future.cancel(true);
-        activeRequests.remove(res);
+        Request req = Collections.min(activeRequests,
+                Comparator.<Request>comparingLong(r -> getCancellationLoss(r.segment))
+                        .thenComparingLong(r -> r.received));
+        req.cancelled = true;
+        activeRequests.remove(req);
+    }
+
+    private static long getCancellationLoss(Segment segment) {
+        if (segment.getState().isRangesSupported())
+            return 0;
+        return segment.getPosition() - segment.getStart();
     }
 
-    private synchronized void onTaskFinished(DownloadingTask task, FutureRequest req, boolean cancelled) {
+    private synchronized void onRequestFinished(Request req, boolean cancelled) {
         if (cancelled)
-            idleTasks.add(task);
+            idleSegments.add(req.segment);
         activeRequests.remove(req);
+        connections.release(req.mirror.getURL());
         changedEvent.fire();
     }
 
@@ -207,8 +1227,15 @@ public class DownloaderImpl implements Downloader {
         if (executor == null)
             return;
 
+        scheduler.shutdownNow();
+        probeExecutor.shutdownNow();
+        prewarmExecutor.shutdownNow();
+        lookupExecutor.shutdownNow();
         executor.shutdownNow();
         try {
+            probeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            prewarmExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            lookupExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
             executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -3,6 +3,8 @@ package jb.test;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 /**<p>
@@ -23,6 +25,14 @@ public interface DownloadingTask {
      */
     URL getURL();
 
+    /**
+     * @return other URLs of exactly the same content, the downloader may fetch different parts of
+     * the content from different sources simultaneously and stops using the ones which fail or are slow
+     */
+    default List<URL> getMirrors() {
+        return Collections.emptyList();
+    }
+
     /**
      * Is called exactly once before actual downloading begins.
      *
@@ -36,7 +46,7 @@ public interface DownloadingTask {
      * Is called when the next data chunk is ready for processing. Subsequent calls represent
      * adjacent chunks, chunk in the very first call is the chunk with zero offset.
      *
-     * @param chunk read-only data chunk
+     * @param chunk read-only data chunk, its content is valid only until the method returns
      * @throws IOException if any error is occurred (see "Error handling strategy")
      */
     void onChunkReceived(ByteBuffer chunk) throws IOException;
@@ -49,7 +59,8 @@ public interface DownloadingTask {
     void onSuccess() throws IOException;
 
     /**
-     * Is called when the task is cancelled due to decrease of the thread count.
+     * Is called when the task is cancelled due to decrease of the thread count and the server
+     * doesn't support byte ranges (otherwise the downloading is continued later from the next adjacent chunk).
      * Client should drop all processed data, the following
      * {@link #onChunkReceived(ByteBuffer)} would represent the chunk with zero offset again
      *
@@ -0,0 +1,28 @@
+package jb.test;
+
+/**
+ * How {@link RandomAccessFileDownloadingTask} makes the downloaded file survive a crash of the system.
+ * Each mode costs more disk syncs than the previous one.
+ */
+public enum Durability {
+    /**
+     * The data is written back by the operating system when it decides, a crash may lose it
+     * even after the task has succeeded.
+     */
+    NONE,
+    /**
+     * The file is synced before the task succeeds.
+     */
+    ON_COMPLETE,
+    /**
+     * The file is synced every time the configured amount of data has been written
+     * and before the task succeeds, so a crash loses a bounded part of the download.
+     * With a {@link WriteBehindStage} the periodic syncs are made by its I/O threads.
+     */
+    PERIODIC,
+    /**
+     * The content is downloaded to a temporary file next to the target, which is synced, renamed to the target
+     * atomically and then the directory is synced, so the target file is either missing or complete after a crash.
+     */
+    ATOMIC_RENAME
+}
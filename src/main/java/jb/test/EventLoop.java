@@ -0,0 +1,96 @@
+package jb.test;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread which serves channels registered in its {@link Selector} and runs submitted actions.
+ * Handlers and actions are called from the loop thread only. A runtime exception thrown by one of them
+ * is passed to the uncaught exception handler of the thread, the loop goes on serving the other channels.
+ */
+class EventLoop implements Runnable {
+    interface Handler {
+        /**
+         * Is called when the channel is ready for any of the operations the key is interested in.
+         */
+        void onReady(SelectionKey key);
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> actions = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Runs the action in the loop thread.
+     */
+    public void execute(Runnable action) {
+        actions.add(action);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the loop after the already submitted actions and waits for its thread.
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        selector.wakeup();
+        thread.join();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                selector.select();
+                runActions();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid())
+                        dispatch(() -> ((Handler) key.attachment()).onReady(key));
+                }
+            }
+            runActions();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private void runActions() {
+        Runnable action;
+        while ((action = actions.poll()) != null)
+            dispatch(action);
+    }
+
+    private void dispatch(Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+}
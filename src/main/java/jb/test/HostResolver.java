@@ -0,0 +1,191 @@
+package jb.test;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**<p>
+ * Resolves host names ahead of connections, concurrent lookups of a host are merged into one.
+ * </p><p>
+ * {@link java.net.HttpURLConnection} looks up the host of every new connection through {@link InetAddress},
+ * which caches results for {@code networkaddress.cache.ttl} seconds (30 by default) and failures for
+ * {@code networkaddress.cache.negative.ttl} seconds (10 by default). A host resolved here is found in that cache
+ * by the connection. Results are kept here for the same time, so a host is looked up again only when
+ * the JVM's entry has expired too. Java doesn't expose the TTLs of DNS records, so the JVM's policy is the one followed.
+ * Expired results are evicted as new hosts are added.
+ * </p>
+ */
+class HostResolver {
+    private static final long DEFAULT_TTL = 30;
+    private static final long DEFAULT_NEGATIVE_TTL = 10;
+
+    // Expired entries are removed when the cache grows to this size, or to twice its size after the last removal
+    private static final int MIN_EVICTION_SIZE = 256;
+
+    interface Lookup {
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+
+    private static class Entry {
+        final CompletableFuture<InetAddress[]> result = new CompletableFuture<>();
+        // System.nanoTime() when the lookup finished
+        volatile long resolvedAt;
+    }
+
+    private final Executor executor;
+    private final Lookup lookup;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final Map<String, Entry> cache = new HashMap<>();
+    private int evictionSize = MIN_EVICTION_SIZE;
+
+    /**
+     * Resolves hosts by {@link InetAddress#getAllByName(String)} with the JVM's caching policy.
+     */
+    HostResolver(Executor executor) {
+        this(executor, InetAddress::getAllByName,
+                getCachePolicy("networkaddress.cache.ttl", "sun.net.inetaddr.ttl", DEFAULT_TTL),
+                getCachePolicy("networkaddress.cache.negative.ttl", "sun.net.inetaddr.negative.ttl", DEFAULT_NEGATIVE_TTL));
+    }
+
+    /**
+     * @param executor         runs the lookups, must not be shared with tasks which wait for them
+     * @param ttlSeconds       time a result is cached, negative for forever
+     * @param negativeTtlSeconds time a failure is cached, negative for forever
+     */
+    HostResolver(Executor executor, Lookup lookup, long ttlSeconds, long negativeTtlSeconds) {
+        this.executor = executor;
+        this.lookup = lookup;
+        this.ttlNanos = ttlSeconds >= 0 ? TimeUnit.SECONDS.toNanos(ttlSeconds) : Long.MAX_VALUE;
+        this.negativeTtlNanos = negativeTtlSeconds >= 0 ? TimeUnit.SECONDS.toNanos(negativeTtlSeconds) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the security property, or the system property if it isn't set, in seconds
+     */
+    private static long getCachePolicy(String securityProperty, String systemProperty, long defaultValue) {
+        String value = Security.getProperty(securityProperty);
+        if (value == null)
+            value = System.getProperty(systemProperty);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Starts lookups of the hosts which aren't cached, they run concurrently on the executor.
+     */
+    public synchronized void prefetch(Collection<String> hosts) {
+        for (String host : hosts)
+            getEntry(host);
+    }
+
+    /**
+     * Waits for the lookup of the host, starts it if the host isn't cached.
+     *
+     * @throws InterruptedIOException if the thread is interrupted meanwhile
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException, InterruptedIOException {
+        Entry entry;
+        synchronized (this) {
+            entry = getEntry(host);
+        }
+        try {
+            return entry.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Lookup of " + host + " is interrupted");
+        } catch (ExecutionException e) {
+            throw toUnknownHost(host, e.getCause());
+        }
+    }
+
+    /**
+     * Starts the lookup of the host if it isn't cached, doesn't wait for it.
+     *
+     * @return future of the addresses, completed on the executor's thread or right away if the host is cached;
+     * it fails with {@link UnknownHostException}
+     */
+    public CompletableFuture<InetAddress[]> resolveAsync(String host) {
+        Entry entry;
+        synchronized (this) {
+            entry = getEntry(host);
+        }
+        // the cached future isn't exposed, so callers can't complete it
+        CompletableFuture<InetAddress[]> result = new CompletableFuture<>();
+        entry.result.whenComplete((addresses, e) -> {
+            if (e == null)
+                result.complete(addresses);
+            else
+                result.completeExceptionally(toUnknownHost(host, e));
+        });
+        return result;
+    }
+
+    private static UnknownHostException toUnknownHost(String host, Throwable cause) {
+        if (cause instanceof UnknownHostException)
+            return (UnknownHostException) cause;
+        UnknownHostException failure = new UnknownHostException(host);
+        failure.initCause(cause);
+        return failure;
+    }
+
+    // called with the lock held
+    private Entry getEntry(String host) {
+        Entry entry = cache.get(host);
+        if (entry != null && !isExpired(entry))
+            return entry;
+
+        Entry newEntry = new Entry();
+        cache.put(host, newEntry);
+        if (cache.size() >= evictionSize) {
+            // a long list of hosts doesn't pile up, sweeps take amortized constant time per lookup
+            cache.values().removeIf(this::isExpired);
+            evictionSize = Math.max(MIN_EVICTION_SIZE, cache.size() * 2);
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    InetAddress[] addresses = lookup.lookup(host);
+                    newEntry.resolvedAt = System.nanoTime();
+                    newEntry.result.complete(addresses);
+                } catch (UnknownHostException | RuntimeException e) {
+                    newEntry.resolvedAt = System.nanoTime();
+                    newEntry.result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the executor is shut down, the entry isn't cached
+            cache.remove(host);
+            newEntry.result.completeExceptionally(e);
+        }
+        return newEntry;
+    }
+
+    /**
+     * @return number of cached hosts, including the ones being looked up
+     */
+    synchronized int size() {
+        return cache.size();
+    }
+
+    private boolean isExpired(Entry entry) {
+        if (!entry.result.isDone())
+            return false;
+        long ttl = entry.result.isCompletedExceptionally() ? negativeTtlNanos : ttlNanos;
+        return System.nanoTime() - entry.resolvedAt >= ttl;
+    }
+}
@@ -0,0 +1,208 @@
+package jb.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Incremental parser of an HTTP/1.1 response to a GET request, the input can be split at arbitrary points.
+ * Supports bodies delimited by Content-Length, chunked transfer encoding or the end of the connection.
+ */
+class HttpResponseParser {
+    interface Listener {
+        /**
+         * @param headers response headers, names are case-insensitive
+         */
+        void onHeaders(int statusCode, Map<String, String> headers) throws IOException;
+
+        /**
+         * @param data next part of the body, is valid only until the method returns
+         */
+        void onBody(ByteBuffer data) throws IOException;
+    }
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private enum State {
+        STATUS_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, BODY_UNTIL_CLOSE, DONE
+    }
+
+    private final Listener listener;
+    private State state = State.STATUS_LINE;
+    private final StringBuilder line = new StringBuilder();
+    private int statusCode;
+    private Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    // bytes left in the body or in the current chunk
+    private long remaining;
+
+    HttpResponseParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param contentRange Content-Range header value, e.g. {@code bytes 0-99/1000}
+     * @return complete length of the content, -1 if unknown
+     */
+    static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null)
+            return -1;
+        try {
+            String total = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+            return "*".equals(total) ? -1 : Long.parseLong(total);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses the next part of the response.
+     *
+     * @return {@code true} if the response is complete, the rest of {@code data} isn't consumed
+     * @throws IOException if the response is malformed or a listener failed
+     */
+    public boolean feed(ByteBuffer data) throws IOException {
+        while (data.hasRemaining() && state != State.DONE) {
+            switch (state) {
+                case BODY:
+                case CHUNK_DATA: {
+                    int length = (int) Math.min(remaining, data.remaining());
+                    ByteBuffer part = data.slice();
+                    part.limit(length);
+                    data.position(data.position() + length);
+                    remaining -= length;
+                    if (remaining == 0)
+                        state = state == State.BODY ? State.DONE : State.CHUNK_END;
+                    listener.onBody(part);
+                    break;
+                }
+                case BODY_UNTIL_CLOSE: {
+                    ByteBuffer part = data.slice();
+                    data.position(data.limit());
+                    listener.onBody(part);
+                    break;
+                }
+                default:
+                    if (readLine(data))
+                        processLine(line.toString());
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Is called when the server closes the connection.
+     *
+     * @return {@code true} if the response is complete
+     */
+    public boolean onEndOfStream() {
+        if (state == State.BODY_UNTIL_CLOSE)
+            state = State.DONE;
+        return state == State.DONE;
+    }
+
+    /**
+     * Appends bytes up to the end of line to {@link #line}.
+     *
+     * @return {@code true} if the line is complete
+     */
+    private boolean readLine(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            char c = (char) (data.get() & 0xFF);
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r')
+                    line.setLength(length - 1);
+                return true;
+            }
+            if (line.length() >= MAX_LINE_LENGTH)
+                throw new IOException("Too long line in HTTP response");
+            line.append(c);
+        }
+        return false;
+    }
+
+    private void processLine(String text) throws IOException {
+        line.setLength(0);
+        switch (state) {
+            case STATUS_LINE:
+                // HTTP/1.1 200 OK
+                String[] parts = text.split(" ", 3);
+                if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+                    throw new IOException("Malformed HTTP status line: " + text);
+                try {
+                    statusCode = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed HTTP status line: " + text);
+                }
+                state = State.HEADERS;
+                break;
+            case HEADERS:
+                if (text.isEmpty())
+                    onHeadersEnd();
+                else
+                    addHeader(text);
+                break;
+            case CHUNK_SIZE:
+                int extension = text.indexOf(';');
+                String size = (extension >= 0 ? text.substring(0, extension) : text).trim();
+                try {
+                    remaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed chunk size: " + text);
+                }
+                if (remaining < 0)
+                    throw new IOException("Malformed chunk size: " + text);
+                state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                break;
+            case CHUNK_END:
+                if (!text.isEmpty())
+                    throw new IOException("Malformed chunk end");
+                state = State.CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                if (text.isEmpty())
+                    state = State.DONE;
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private void addHeader(String text) throws IOException {
+        int colon = text.indexOf(':');
+        if (colon <= 0)
+            throw new IOException("Malformed HTTP header: " + text);
+
+        String name = text.substring(0, colon).trim();
+        String value = text.substring(colon + 1).trim();
+        headers.merge(name, value, (a, b) -> a + ", " + b);
+    }
+
+    private void onHeadersEnd() throws IOException {
+        if (statusCode / 100 == 1) {
+            // interim response, the final one follows
+            headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            state = State.STATUS_LINE;
+            return;
+        }
+
+        String transferEncoding = headers.get("Transfer-Encoding");
+        String contentLength = headers.get("Content-Length");
+        if (statusCode == 204 || statusCode == 304) {
+            state = State.DONE;
+        } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed Content-Length: " + contentLength);
+            }
+            state = remaining > 0 ? State.BODY : State.DONE;
+        } else {
+            state = State.BODY_UNTIL_CLOSE;
+        }
+        listener.onHeaders(statusCode, headers);
+    }
+}
@@ -0,0 +1,31 @@
+package jb.test;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Signals that the server responded with an unexpected HTTP status code.
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final Optional<Long> retryAfter;
+
+    public HttpStatusException(String message, int statusCode, Optional<Long> retryAfter) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return delay in milliseconds the server asked to wait before the next request (Retry-After header)
+     */
+    public Optional<Long> getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,133 @@
+package jb.test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**<p>
+ * {@link RandomAccessFileDownloadingTask} which maps the file into memory when the content length is known
+ * in advance, so received chunks are copied into the mapping without a system call per chunk.
+ * Files larger than a mapping window are mapped in several windows. Data beyond the announced length
+ * and the whole content of unknown length are written to the file as usual.
+ * </p><p>
+ * Mapped data is written to the disk by the operating system at any time, the task forces it explicitly
+ * before the resume journal is saved and on success, if the {@link Durability} mode requires that. The mappings are released by the garbage collector,
+ * so the file stays mapped for a while after the task is finished.
+ * </p>
+ */
+public class MappedFileDownloadingTask extends RandomAccessFileDownloadingTask {
+    // A mapping can't be larger than 2 GB
+    private static final long DEFAULT_WINDOW_SIZE = 1L << 30;
+
+    private final long windowSize;
+    private volatile MappedByteBuffer[] windows = null;
+    private long mappedLength = 0;
+
+    public MappedFileDownloadingTask(URL url, Path path) {
+        this(url, path, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedFileDownloadingTask(URL url, Path path, long windowSize) {
+        super(url, path);
+        this.windowSize = windowSize;
+    }
+
+    @Override
+    public void onStart(Optional<Long> contentLength) throws IOException {
+        super.onStart(contentLength);
+        if (contentLength.isPresent() && contentLength.get() > 0)
+            map(contentLength.get());
+    }
+
+    private void map(long length) throws IOException {
+        MappedByteBuffer[] mapped = new MappedByteBuffer[(int) ((length + windowSize - 1) / windowSize)];
+        // the mappings stay valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(getWorkingPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < mapped.length; ++i) {
+                long start = i * windowSize;
+                mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(windowSize, length - start));
+            }
+        }
+        mappedLength = length;
+        windows = mapped;
+    }
+
+    @Override
+    public void onChunkReceived(ByteBuffer chunk) throws IOException {
+        if (windows != null)
+            onChunkReceived(getWrittenLength(), chunk);
+        else
+            super.onChunkReceived(chunk);
+    }
+
+    @Override
+    protected void write(long offset, ByteBuffer chunk) throws IOException {
+        MappedByteBuffer[] mapped = windows;
+        if (mapped == null) {
+            super.write(offset, chunk);
+            return;
+        }
+
+        long position = offset;
+        while (chunk.hasRemaining() && position < mappedLength) {
+            int window = (int) (position / windowSize);
+            // absolute bulk puts appeared in Java 16 only
+            ByteBuffer target = mapped[window].duplicate();
+            target.position((int) (position - window * windowSize));
+            int length = Math.min(chunk.remaining(), target.remaining());
+            ByteBuffer part = chunk.duplicate();
+            part.limit(part.position() + length);
+            target.put(part);
+            chunk.position(chunk.position() + length);
+            position += length;
+        }
+        if (chunk.hasRemaining())
+            super.write(position, chunk);
+    }
+
+    @Override
+    protected void force() throws IOException {
+        MappedByteBuffer[] mapped = windows;
+        if (mapped != null) {
+            for (MappedByteBuffer window : mapped)
+                window.force();
+        }
+        super.force();
+    }
+
+    @Override
+    protected void requestSync() throws IOException {
+        // the mapped data isn't written by the I/O threads of the write-behind stage
+        if (windows != null)
+            force();
+        else
+            super.requestSync();
+    }
+
+    @Override
+    public void onSuccess() throws IOException {
+        try {
+            // the windows are synced by force() if the durability mode requires that
+            super.onSuccess();
+        } finally {
+            windows = null;
+        }
+    }
+
+    @Override
+    public void onFailure(Throwable cause) {
+        super.onFailure(cause);
+        windows = null;
+    }
+
+    @Override
+    public void onDiscard() throws IOException {
+        super.onDiscard();
+        windows = null;
+    }
+}
@@ -0,0 +1,63 @@
+package jb.test;
+
+import java.net.URL;
+
+/**
+ * One of equivalent sources of a task's content with its measured throughput.
+ */
+class Mirror {
+    // weight of the newest sample in the throughput estimate
+    private static final double SMOOTHING = 0.3;
+
+    private final URL url;
+    private volatile boolean probed = false;
+    private volatile boolean dropped = false;
+    private volatile double throughput = -1;
+
+    Mirror(URL url) {
+        this.url = url;
+    }
+
+    public URL getURL() {
+        return url;
+    }
+
+    /**
+     * @return {@code true} if the content length and validator of the task were received from this mirror
+     */
+    public boolean isProbed() {
+        return probed;
+    }
+
+    public void setProbed() {
+        this.probed = true;
+    }
+
+    public boolean isDropped() {
+        return dropped;
+    }
+
+    public void drop() {
+        this.dropped = true;
+    }
+
+    public boolean isMeasured() {
+        return throughput >= 0;
+    }
+
+    /**
+     * @return smoothed throughput of a single request in bytes per second, negative if not measured yet
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public synchronized void addThroughputSample(long bytesPerSecond) {
+        throughput = throughput < 0 ? bytesPerSecond : throughput + SMOOTHING * (bytesPerSecond - throughput);
+    }
+
+    @Override
+    public String toString() {
+        return url.toString();
+    }
+}
@@ -0,0 +1,66 @@
+package jb.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking byte stream over a connected {@link SocketChannel}. No method blocks,
+ * the caller retries when the channel becomes readable or writable.
+ */
+abstract class NioTransport {
+    protected final SocketChannel channel;
+
+    NioTransport(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Makes progress of the connection setup (e.g. TLS handshake).
+     *
+     * @return {@code true} if the transport is ready for application data
+     */
+    public abstract boolean handshake() throws IOException;
+
+    /**
+     * @return number of read bytes, 0 if no data is available yet, -1 at the end of stream
+     */
+    public abstract int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * @return {@code true} if all of {@code src} is sent to the channel
+     */
+    public abstract boolean write(ByteBuffer src) throws IOException;
+
+    /**
+     * @return {@code true} if the transport waits for the channel to become writable
+     */
+    public abstract boolean hasPendingOutput();
+
+    static class Plain extends NioTransport {
+        Plain(SocketChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        public boolean handshake() {
+            return true;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public boolean write(ByteBuffer src) throws IOException {
+            channel.write(src);
+            return !src.hasRemaining();
+        }
+
+        @Override
+        public boolean hasPendingOutput() {
+            return false;
+        }
+    }
+}
@@ -5,10 +5,18 @@ import java.util.Optional;
 public class Progress {
     private final long downloaded;
     private final Optional<Long> total;
+    private final int handshakeCount;
+    private final long handshakeNanos;
 
     public Progress(long downloaded, Optional<Long> total) {
+        this(downloaded, total, 0, 0);
+    }
+
+    public Progress(long downloaded, Optional<Long> total, int handshakeCount, long handshakeNanos) {
         this.downloaded = downloaded;
         this.total = total;
+        this.handshakeCount = handshakeCount;
+        this.handshakeNanos = handshakeNanos;
     }
 
     public long getDownloaded() {
@@ -18,4 +26,18 @@ public class Progress {
     public Optional<Long> getTotal() {
         return total;
     }
+
+    /**
+     * @return number of TLS handshakes of new connections, reused connections don't need them
+     */
+    public int getHandshakeCount() {
+        return handshakeCount;
+    }
+
+    /**
+     * @return total duration of TLS handshakes in nanoseconds
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
 }
@@ -2,33 +2,52 @@ package jb.test;
 
 import java.util.Optional;
 
+/**
+ * Progress of a single task, a view of its row in {@link ProgressTable}.
+ */
 class ProgressData {
-    private volatile long downloadedBytes = 0;
-    private volatile Optional<Long> totalBytes = Optional.empty();
+    private final ProgressTable table;
+    private final int task;
+
+    ProgressData() {
+        this(new ProgressTable(1), 0);
+    }
+
+    ProgressData(ProgressTable table, int task) {
+        this.table = table;
+        this.task = task;
+    }
 
     public long getDownloadedBytes() {
-        return downloadedBytes;
+        return table.getDownloadedBytes(task);
     }
 
     public Optional<Long> getTotalBytes() {
-        return totalBytes;
+        long total = table.getTotalBytes(task);
+        return total != ProgressTable.UNKNOWN ? Optional.of(total) : Optional.empty();
     }
 
-    public void addDownloadedBytes(long add) {
-        if (add < 0 || (totalBytes.isPresent() && totalBytes.get() < downloadedBytes + add))
-            throw new IllegalArgumentException();
+    public int getHandshakeCount() {
+        return table.getHandshakeCount(task);
+    }
 
-        downloadedBytes += add;
+    public long getHandshakeNanos() {
+        return table.getHandshakeNanos(task);
+    }
+
+    public void addHandshake(long nanos) {
+        table.addHandshake(task, nanos);
+    }
+
+    public void addDownloadedBytes(long add) {
+        table.addDownloadedBytes(task, add);
     }
 
     public void resetDownloadedBytes() {
-        downloadedBytes = 0;
+        table.resetDownloadedBytes(task);
     }
 
     public void setTotalBytes(long val) {
-        if (val < downloadedBytes)
-            throw new IllegalArgumentException();
-
-        totalBytes = Optional.of(val);
+        table.setTotalBytes(task, val);
     }
 }
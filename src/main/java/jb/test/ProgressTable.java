@@ -0,0 +1,221 @@
+package jb.test;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**<p>
+ * Progress of the tasks of a downloader kept in primitive columns indexed by the task number,
+ * so a task takes a few dozen bytes regardless of whether it's started. {@link ProgressData} is a view
+ * of a row, it's created only for the tasks being downloaded.
+ * </p><p>
+ * A table of tasks taken from a source of unknown length has a fixed number of rows reused by the next tasks,
+ * see {@link #createRecycling(int)}.
+ * </p><p>
+ * Changes of the rows are also added to striped counters, so the aggregate progress is read in constant time
+ * without locks. Counters are updated independently, so a reading may combine the downloaded bytes and the total
+ * of slightly different moments.
+ * </p>
+ */
+class ProgressTable {
+    // total of a task which isn't known yet
+    static final long UNKNOWN = -1;
+
+    private final AtomicLongArray downloadedBytes;
+    private final AtomicLongArray totalBytes;
+    private final AtomicIntegerArray handshakeCounts;
+    private final AtomicLongArray handshakeNanos;
+
+    private final boolean recycling;
+    // guarded by this
+    private int nextRow = 0;
+    private final int[] freeRows;
+    private int freeCount;
+
+    private final LongAdder downloadedSum = new LongAdder();
+    // sum of the totals which are known
+    private final LongAdder knownTotalSum = new LongAdder();
+    private final LongAdder unknownTotals = new LongAdder();
+    private final LongAdder handshakeCountSum = new LongAdder();
+    private final LongAdder handshakeNanosSum = new LongAdder();
+
+    /**
+     * @param size number of tasks, their totals are unknown initially
+     */
+    ProgressTable(int size) {
+        this(size, false);
+        unknownTotals.add(size);
+    }
+
+    private ProgressTable(int size, boolean recycling) {
+        this.recycling = recycling;
+        downloadedBytes = new AtomicLongArray(size);
+        totalBytes = new AtomicLongArray(size);
+        handshakeCounts = new AtomicIntegerArray(size);
+        handshakeNanos = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i)
+            totalBytes.set(i, UNKNOWN);
+
+        freeRows = new int[recycling ? size : 0];
+        freeCount = freeRows.length;
+        // rows are taken from the end
+        for (int i = 0; i < freeCount; ++i)
+            freeRows[i] = freeCount - 1 - i;
+    }
+
+    /**
+     * Creates a table of tasks taken from a source of unknown length. The total stays unknown
+     * until {@link #onSourceEnded()} is called.
+     *
+     * @param capacity maximal number of tasks being downloaded at once
+     */
+    static ProgressTable createRecycling(int capacity) {
+        ProgressTable table = new ProgressTable(capacity, true);
+        // the tasks left in the source
+        table.unknownTotals.increment();
+        return table;
+    }
+
+    public boolean isRecycling() {
+        return recycling;
+    }
+
+    /**
+     * @return {@code true} if there's a row for one more task
+     */
+    public synchronized boolean hasFreeRow() {
+        return recycling ? freeCount > 0 : nextRow < size();
+    }
+
+    /**
+     * Takes a row for the next task, rows of a table which isn't recycling are taken in order.
+     *
+     * @throws IllegalStateException if there's no free row
+     */
+    public synchronized int acquire() {
+        if (!hasFreeRow())
+            throw new IllegalStateException("No free rows");
+        if (!recycling)
+            return nextRow++;
+        unknownTotals.increment();
+        return freeRows[--freeCount];
+    }
+
+    /**
+     * Frees the row of a finished task for the next one, does nothing if the table isn't recycling.
+     * The progress of the task stays in the totals, its total is its downloaded bytes if it wasn't known.
+     */
+    public synchronized void release(int row) {
+        if (!recycling)
+            return;
+        if (totalBytes.get(row) == UNKNOWN) {
+            knownTotalSum.add(downloadedBytes.get(row));
+            unknownTotals.decrement();
+        }
+        downloadedBytes.set(row, 0);
+        totalBytes.set(row, UNKNOWN);
+        handshakeCounts.set(row, 0);
+        handshakeNanos.set(row, 0);
+        freeRows[freeCount++] = row;
+    }
+
+    /**
+     * Is called when the source of a recycling table has no more tasks, so the total may become known.
+     */
+    public void onSourceEnded() {
+        if (recycling)
+            unknownTotals.decrement();
+    }
+
+    public int size() {
+        return totalBytes.length();
+    }
+
+    /**
+     * @return view of the progress of the task
+     */
+    public ProgressData get(int task) {
+        return new ProgressData(this, task);
+    }
+
+    /**
+     * @return progress of the task
+     */
+    public Progress getProgress(int task) {
+        long total = totalBytes.get(task);
+        return new Progress(downloadedBytes.get(task), total != UNKNOWN ? Optional.of(total) : Optional.empty(),
+                handshakeCounts.get(task), handshakeNanos.get(task));
+    }
+
+    /**
+     * @return progress of all tasks, the total is known only if it's known for every task
+     */
+    public Progress getProgress() {
+        Optional<Long> total = unknownTotals.sum() == 0 ? Optional.of(knownTotalSum.sum()) : Optional.empty();
+        return new Progress(downloadedSum.sum(), total, handshakeCountSum.intValue(), handshakeNanosSum.sum());
+    }
+
+    long getDownloadedBytes(int task) {
+        return downloadedBytes.get(task);
+    }
+
+    long getTotalBytes(int task) {
+        return totalBytes.get(task);
+    }
+
+    int getHandshakeCount(int task) {
+        return handshakeCounts.get(task);
+    }
+
+    long getHandshakeNanos(int task) {
+        return handshakeNanos.get(task);
+    }
+
+    void addHandshake(int task, long nanos) {
+        handshakeCounts.incrementAndGet(task);
+        handshakeNanos.addAndGet(task, nanos);
+        handshakeCountSum.increment();
+        handshakeNanosSum.add(nanos);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the number is negative or the known total is exceeded
+     */
+    void addDownloadedBytes(int task, long add) {
+        if (add < 0)
+            throw new IllegalArgumentException();
+        while (true) {
+            long downloaded = downloadedBytes.get(task);
+            long total = totalBytes.get(task);
+            if (total != UNKNOWN && total < downloaded + add)
+                throw new IllegalArgumentException();
+            if (downloadedBytes.compareAndSet(task, downloaded, downloaded + add))
+                break;
+        }
+        downloadedSum.add(add);
+    }
+
+    void resetDownloadedBytes(int task) {
+        downloadedSum.add(-downloadedBytes.getAndSet(task, 0));
+    }
+
+    /**
+     * @throws IllegalArgumentException if less than the downloaded bytes
+     */
+    void setTotalBytes(int task, long total) {
+        long previous;
+        do {
+            previous = totalBytes.get(task);
+            if (total < downloadedBytes.get(task))
+                throw new IllegalArgumentException();
+        } while (!totalBytes.compareAndSet(task, previous, total));
+
+        if (previous != UNKNOWN) {
+            knownTotalSum.add(total - previous);
+        } else {
+            knownTotalSum.add(total);
+            unknownTotals.decrement();
+        }
+    }
+}
@@ -9,34 +9,108 @@ import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class RandomAccessFileDownloadingTask implements Closeable, DownloadingTask {
+public class RandomAccessFileDownloadingTask implements Closeable, SegmentedDownloadingTask {
+
+    private static final long JOURNAL_SAVE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    // Initial file length for the content of unknown length
+    private static final long INITIAL_FILE_LENGTH = 64 * 1024;
+
+    // Such file grows at most by this much at once, so the unused tail stays small
+    private static final long MAX_FILE_GROWTH = 64 * 1024 * 1024;
+
+    // Default amount of data written between syncs in the periodic mode
+    public static final long DEFAULT_SYNC_INTERVAL = 64 * 1024 * 1024;
 
     private final URL url;
+    private List<URL> mirrors = Collections.emptyList();
 
     private final Path path;
     private RandomAccessFile f;
     private FileChannel channel;
     private long fileLength = 0L;
-    private long writtenLength = 0L;
+    private final AtomicLong writtenLength = new AtomicLong(0L);
+
+    private Durability durability = Durability.NONE;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+    private final AtomicLong unsyncedLength = new AtomicLong(0L);
+
+    private WriteBehindStage writeBehind = null;
+    private WriteBehindStage.FileQueue writes = null;
+
+    private boolean resumable = false;
+    private ResumeJournal journal = null;
+    private final AtomicLong lastJournalSave = new AtomicLong(System.nanoTime());
 
     public RandomAccessFileDownloadingTask(URL url, Path path) {
         this.url = url;
         this.path = path;
     }
 
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * If set, the task keeps a {@link ResumeJournal} next to the file, and partially downloaded
+     * file isn't deleted on failure or discard, so the next run can download only the missing parts.
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * If set, chunks are written to the file by the I/O threads of the stage, the downloader's threads
+     * only copy them to the queue of the file and wait when it's full. Must be set before the task is started.
+     */
+    public void setWriteBehind(WriteBehindStage writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Sets how the file is synced to the disk, {@link Durability#NONE} by default. Must be set before the task is started.
+     */
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    /**
+     * Sets the amount of data written between syncs in the {@link Durability#PERIODIC} mode.
+     */
+    public void setSyncInterval(long syncInterval) {
+        if (syncInterval < 1)
+            throw new IllegalArgumentException("syncInterval < 1");
+        this.syncInterval = syncInterval;
+    }
+
     public long getFileLength() {
         return fileLength;
     }
     public long getWrittenLength() {
-        return writtenLength;
+        return writtenLength.get();
     }
 
     @Override
     public void close() throws IOException {
-        if (f != null)
+        if (f == null)
+            return;
+        try {
+            flushWrites();
+        } finally {
             f.close();
+        }
     }
 
     @Override
@@ -44,33 +118,111 @@ public class RandomAccessFileDownloadingTask implements Closeable, DownloadingTa
         return url;
     }
 
+    @Override
+    public List<URL> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * Sets other URLs of the same content, see {@link DownloadingTask#getMirrors()}.
+     */
+    public void setMirrors(List<URL> mirrors) {
+        this.mirrors = mirrors;
+    }
+
+    @Override
+    public List<ByteRange> getCompletedRanges(long contentLength, Optional<String> validator) throws IOException {
+        if (!resumable || !validator.isPresent())
+            return Collections.emptyList();
+
+        Path journalPath = ResumeJournal.getJournalPath(path);
+        Optional<ResumeJournal> previous = ResumeJournal.load(journalPath);
+        if (previous.isPresent()
+                && previous.get().getContentLength() == contentLength
+                && previous.get().getValidator().equals(validator.get())
+                && Files.exists(getWorkingPath()) && Files.size(getWorkingPath()) == contentLength)
+            journal = previous.get();
+        else
+            journal = new ResumeJournal(journalPath, contentLength, validator.get());
+
+        writtenLength.set(journal.getCompletedLength());
+        return journal.getCompletedRanges();
+    }
+
     @Override
     public void onStart(Optional<Long> contentLength) throws IOException {
-        fileLength = contentLength.orElse(0xFFFFL);
+        // extending the file doesn't fill it with zeros, the file system allocates the blocks when they're written
+        fileLength = contentLength.orElse(INITIAL_FILE_LENGTH);
+        if (resumable && journal == null) {
+            // the download isn't continued, so the journal of the previous run doesn't describe the file anymore
+            Files.deleteIfExists(ResumeJournal.getJournalPath(path));
+        }
         open();
     }
 
     @Override
     public void onChunkReceived(ByteBuffer chunk) throws IOException {
-        if (writtenLength + chunk.limit() > fileLength) {
-            fileLength += 0xFFFFL;
+        int length = chunk.remaining();
+        long required = writtenLength.get() + chunk.remaining();
+        if (required > fileLength) {
+            // the file doubles, so a large content takes a few extensions, it's truncated on success
+            fileLength = Math.max(required, fileLength + Math.min(fileLength, MAX_FILE_GROWTH));
             f.setLength(fileLength);
         }
-        writtenLength += channel.write(chunk);
+        if (writes != null) {
+            writes.add(writtenLength.get(), chunk);
+            writtenLength.addAndGet(length);
+        } else {
+            writtenLength.addAndGet(channel.write(chunk));
+        }
+        onWritten(length);
+    }
+
+    @Override
+    public void onChunkReceived(long offset, ByteBuffer chunk) throws IOException {
+        int length = chunk.remaining();
+        write(offset, chunk);
+        writtenLength.addAndGet(length);
+        onWritten(length);
+
+        if (journal != null) {
+            journal.add(offset, length);
+            long now = System.nanoTime();
+            long lastSave = lastJournalSave.get();
+            if (now - lastSave >= JOURNAL_SAVE_INTERVAL && lastJournalSave.compareAndSet(lastSave, now))
+                saveJournal();
+        }
     }
 
     @Override
     public void onSuccess() throws IOException {
-        fileLength = writtenLength;
+        if (journal != null) {
+            journal.delete();
+            journal = null;
+        }
+        flushWrites();
+        fileLength = writtenLength.get();
         f.setLength(fileLength);
+        if (durability != Durability.NONE)
+            force();
         close();
+
+        if (durability == Durability.ATOMIC_RENAME) {
+            Files.move(getWorkingPath(), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(path.toAbsolutePath().getParent());
+        }
     }
 
     @Override
     public void onFailure(Throwable cause) {
         try {
-            close();
-            Files.delete(path);
+            if (keepPartialFile())
+                return;
+            try {
+                close();
+            } finally {
+                Files.delete(getWorkingPath());
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -79,27 +231,137 @@ public class RandomAccessFileDownloadingTask implements Closeable, DownloadingTa
     @Override
     public void onCancel() throws IOException {
         try {
+            // the queued chunks must not overwrite the restarted content
+            flushWrites();
             channel.position(0);
-            writtenLength = 0;
         } catch (ClosedByInterruptException e) {
             open();
+        } catch (IOException e) {
+            // the chunks are stale anyway, the file is reopened with a new queue
+            f.close();
+            open();
         }
+        writtenLength.set(0);
     }
 
     @Override
     public void onDiscard() throws IOException {
-        close();
-        Files.delete(path);
+        if (keepPartialFile())
+            return;
+        try {
+            close();
+        } finally {
+            Files.delete(getWorkingPath());
+        }
     }
 
     public Path getPath() {
         return path;
     }
 
+    /**
+     * @return the file the content is written to until the task succeeds
+     */
+    protected Path getWorkingPath() {
+        if (durability == Durability.ATOMIC_RENAME)
+            return path.resolveSibling(path.getFileName() + ".part");
+        return path;
+    }
+
+    /**
+     * Writes the whole chunk to the file at {@code offset}, may be called simultaneously for disjoint ranges.
+     */
+    protected void write(long offset, ByteBuffer chunk) throws IOException {
+        if (writes != null) {
+            writes.add(offset, chunk);
+            return;
+        }
+        long position = offset;
+        while (chunk.hasRemaining())
+            position += channel.write(chunk, position);
+    }
+
+    /**
+     * Makes the written data durable, is called before the journal is saved.
+     */
+    protected void force() throws IOException {
+        flushWrites();
+        if (channel != null && channel.isOpen())
+            channel.force(false);
+    }
+
+    /**
+     * Syncs the data written so far in the periodic mode. The I/O thread of the write-behind stage does that
+     * after writing the queued chunks, so the connection isn't held up by the sync.
+     */
+    protected void requestSync() throws IOException {
+        if (writes != null)
+            writes.requestSync();
+        else
+            force();
+    }
+
     private void open() throws IOException {
-        f = new RandomAccessFile(path.toFile(), "rw");
+        f = new RandomAccessFile(getWorkingPath().toFile(), "rw");
         channel = f.getChannel();
         f.setLength(fileLength);
-        writtenLength = 0;
+        writes = writeBehind != null ? writeBehind.createQueue(channel) : null;
+    }
+
+    /**
+     * Waits until the queued chunks are written, if the task writes behind.
+     */
+    private void flushWrites() throws IOException {
+        if (writes != null)
+            writes.flush();
+    }
+
+    /**
+     * Syncs the file in the periodic mode when enough data has been written since the last sync.
+     */
+    private void onWritten(long length) throws IOException {
+        if (durability != Durability.PERIODIC)
+            return;
+        long unsynced = unsyncedLength.addAndGet(length);
+        if (unsynced >= syncInterval && unsyncedLength.compareAndSet(unsynced, 0))
+            requestSync();
+    }
+
+    /**
+     * Makes the entries of the directory durable, e.g. a file renamed there.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories can't be opened on Windows, where a rename is durable without that
+        }
+    }
+
+    private void saveJournal() throws IOException {
+        // the journal must not mention data which may be lost on crash
+        journal.save(this::force);
+    }
+
+    /**
+     * Saves the journal and closes the file if the downloading can be resumed later.
+     * The file of the previous run is kept with its journal if the task hasn't opened it, e.g. the probe failed.
+     *
+     * @return {@code true} if the partial file is kept
+     */
+    private boolean keepPartialFile() throws IOException {
+        if (!resumable)
+            return false;
+        if (f == null)
+            return true;
+        if (journal == null)
+            return false;
+
+        try {
+            saveJournal();
+        } finally {
+            close();
+        }
+        return true;
     }
 }
@@ -0,0 +1,160 @@
+package jb.test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**<p>
+ * Sidecar file describing which parts of a partially downloaded file are complete,
+ * so the downloading can be continued after the process restart.
+ * </p><p>
+ * The journal stores the expected content length, the content validator (ETag or Last-Modified)
+ * and the list of completed byte ranges. It is replaced atomically on every {@link #save()},
+ * so a crash leaves either the previous or the new version on disk.
+ * </p>
+ */
+public class ResumeJournal {
+    private static final int MAGIC = 0x4A424A31; // "JBJ1"
+
+    private final Path path;
+    private final long contentLength;
+    private final String validator;
+    // start -> end of merged completed ranges
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    private final Object saveLock = new Object();
+
+    public ResumeJournal(Path path, long contentLength, String validator) {
+        this.path = path;
+        this.contentLength = contentLength;
+        this.validator = validator;
+    }
+
+    /**
+     * @return journal path for the downloaded file
+     */
+    public static Path getJournalPath(Path file) {
+        return file.resolveSibling(file.getFileName() + ".journal");
+    }
+
+    /**
+     * Reads the journal.
+     *
+     * @return the journal, {@code empty} if it doesn't exist or can't be parsed
+     */
+    public static Optional<ResumeJournal> load(Path path) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC)
+                return Optional.empty();
+
+            ResumeJournal journal = new ResumeJournal(path, in.readLong(), in.readUTF());
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                long start = in.readLong();
+                long end = in.readLong();
+                if (start < 0 || end < start || end > journal.contentLength)
+                    return Optional.empty();
+                journal.add(start, end - start);
+            }
+            return Optional.of(journal);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public String getValidator() {
+        return validator;
+    }
+
+    /**
+     * Marks bytes from {@code offset} to {@code offset + length} as completed.
+     */
+    public synchronized void add(long offset, long length) {
+        if (length <= 0)
+            return;
+
+        long start = offset;
+        long end = offset + length;
+        Map.Entry<Long, Long> prev = ranges.floorEntry(start);
+        if (prev != null && prev.getValue() >= start) {
+            start = prev.getKey();
+            end = Math.max(end, prev.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+        }
+        ranges.put(start, end);
+    }
+
+    public synchronized List<ByteRange> getCompletedRanges() {
+        List<ByteRange> result = new ArrayList<>(ranges.size());
+        for (Map.Entry<Long, Long> e : ranges.entrySet())
+            result.add(new ByteRange(e.getKey(), e.getValue()));
+        return result;
+    }
+
+    public synchronized long getCompletedLength() {
+        long sum = 0;
+        for (Map.Entry<Long, Long> e : ranges.entrySet())
+            sum += e.getValue() - e.getKey();
+        return sum;
+    }
+
+    /**
+     * Makes the data of the completed ranges durable, see {@link #save(Sync)}.
+     */
+    public interface Sync {
+        void force() throws IOException;
+    }
+
+    /**
+     * Atomically replaces the journal file with the current state.
+     */
+    public void save() throws IOException {
+        save(() -> { });
+    }
+
+    /**
+     * Atomically replaces the journal file with the ranges completed by now. They are taken before
+     * {@code sync} is called, so the journal doesn't mention data written after the sync.
+     */
+    public void save(Sync sync) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        // an older snapshot must not replace a newer one
+        synchronized (saveLock) {
+            List<ByteRange> completed = getCompletedRanges();
+            sync.force();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(contentLength);
+                out.writeUTF(validator);
+                out.writeInt(completed.size());
+                for (ByteRange range : completed) {
+                    out.writeLong(range.getStart());
+                    out.writeLong(range.getEnd());
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    public void delete() throws IOException {
+        try {
+            Files.delete(path);
+        } catch (NoSuchFileException e) {
+            // nothing to delete
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package jb.test;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**<p>
+ * Describes how failed requests are retried.
+ * </p><p>
+ * Delay before the n-th retry is chosen randomly between a half and the whole of
+ * {@code initialDelay * 2^(n - 1)} (but not more than {@code maxDelay}),
+ * unless the server asked for a specific delay with Retry-After header (up to {@value #MAX_RETRY_AFTER} ms).
+ * Network errors are always retried, HTTP errors only if the status code is retryable.
+ * </p>
+ */
+public class RetryPolicy {
+    public static final Set<Integer> DEFAULT_RETRYABLE_STATUS_CODES =
+            Collections.unmodifiableSet(new HashSet<>(Arrays.asList(408, 429, 500, 502, 503, 504)));
+
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    // Longer delays asked by Retry-After header are shortened, so a server can't hold a request back indefinitely
+    public static final long MAX_RETRY_AFTER = 5 * 60 * 1000;
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Set<Integer> retryableStatusCodes;
+
+    /**
+     * @param maxAttempts  maximal number of consecutive attempts to download a part of a task without any progress
+     * @param initialDelay delay before the first retry in milliseconds
+     * @param maxDelay     maximal delay before a retry in milliseconds
+     */
+    public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay) {
+        this(maxAttempts, initialDelay, maxDelay, DEFAULT_RETRYABLE_STATUS_CODES);
+    }
+
+    public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay, Set<Integer> retryableStatusCodes) {
+        if (maxAttempts < 1 || initialDelay < 0 || maxDelay < initialDelay)
+            throw new IllegalArgumentException();
+
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.retryableStatusCodes = retryableStatusCodes;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempt number of the failed attempt, starting from 1
+     * @return {@code true} if one more attempt should be made
+     */
+    public boolean shouldRetry(int attempt, Throwable cause) {
+        if (attempt >= maxAttempts)
+            return false;
+        if (cause instanceof HttpStatusException)
+            return retryableStatusCodes.contains(((HttpStatusException) cause).getStatusCode());
+        return true;
+    }
+
+    /**
+     * @param attempt number of the failed attempt, starting from 1
+     * @return delay before the next attempt in milliseconds
+     */
+    public long getDelay(int attempt, Throwable cause) {
+        if (cause instanceof HttpStatusException) {
+            Optional<Long> retryAfter = ((HttpStatusException) cause).getRetryAfter();
+            if (retryAfter.isPresent())
+                return retryAfter.get();
+        }
+
+        long delay = maxDelay;
+        if (attempt - 1 < Long.numberOfLeadingZeros(initialDelay) - 1)
+            delay = Math.min(maxDelay, initialDelay << (attempt - 1));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Parses Retry-After header value, which is either a number of seconds or an HTTP date.
+     *
+     * @return delay in milliseconds, at most {@value #MAX_RETRY_AFTER}, {@code empty} if the value is missing or malformed
+     */
+    public static Optional<Long> parseRetryAfter(String value) {
+        if (value == null)
+            return Optional.empty();
+
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return Optional.of(Math.max(0, Math.min(seconds, MAX_RETRY_AFTER / 1000) * 1000));
+        } catch (NumberFormatException e) {
+            // may be a date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            long delay = date.toInstant().toEpochMilli() - System.currentTimeMillis();
+            return Optional.of(Math.max(0, Math.min(delay, MAX_RETRY_AFTER)));
+        } catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package jb.test;
+
+/**
+ * Contiguous byte range of a task which is downloaded by a single request.
+ */
+class Segment {
+    private final TaskState state;
+    private final long start;
+    private long position;
+    private long end;
+    private int failedAttempts = 0;
+    private int requests = 0;
+    private boolean prewarmed = false;
+
+    /**
+     * @param state task the segment belongs to
+     * @param start offset of the first byte
+     * @param end   offset after the last byte, negative if unknown (download till the end of the content)
+     */
+    Segment(TaskState state, long start, long end) {
+        this.state = state;
+        this.start = start;
+        this.position = start;
+        this.end = end;
+    }
+
+    public TaskState getState() {
+        return state;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    public synchronized long getEnd() {
+        return end;
+    }
+
+    public synchronized boolean isBounded() {
+        return end >= 0;
+    }
+
+    /**
+     * @return number of bytes left to download, negative if unknown
+     */
+    public synchronized long getRemaining() {
+        return end >= 0 ? end - position : -1;
+    }
+
+    public synchronized boolean isComplete() {
+        return end >= 0 && position >= end;
+    }
+
+    /**
+     * Sets the end of the segment which was unknown when the segment was created.
+     */
+    public synchronized void setEnd(long end) {
+        if (this.end >= 0 || end < position)
+            throw new IllegalStateException();
+        this.end = end;
+    }
+
+    /**
+     * Reserves bytes received by a request which has read the segment up to {@code cursor}.
+     * Several requests may download the same segment (see {@link #addRequest()}),
+     * bytes already reserved by another request are skipped.
+     *
+     * @param cursor offset of the first received byte
+     * @param length number of received bytes
+     * @return reserved range, {@code null} if there are no new bytes in the received ones
+     */
+    public synchronized ByteRange claim(long cursor, int length) {
+        long from = Math.max(cursor, position);
+        long to = cursor + length;
+        if (end >= 0)
+            to = Math.min(to, end);
+        if (to <= from)
+            return null;
+
+        position = to;
+        return new ByteRange(from, to);
+    }
+
+    /**
+     * Registers a request downloading the segment.
+     */
+    public synchronized void addRequest() {
+        requests++;
+    }
+
+    /**
+     * Unregisters a request downloading the segment.
+     *
+     * @return number of requests still downloading the segment
+     */
+    public synchronized int removeRequest() {
+        return --requests;
+    }
+
+    public synchronized int getRequestCount() {
+        return requests;
+    }
+
+    /**
+     * Marks that a connection was opened ahead for the segment's request.
+     *
+     * @return {@code false} if it's already marked
+     */
+    public synchronized boolean setPrewarmed() {
+        if (prewarmed)
+            return false;
+        prewarmed = true;
+        return true;
+    }
+
+    /**
+     * Hands the second half of the remaining bytes over to a new segment of the same task.
+     *
+     * @param minSize minimal size of both halves
+     * @return the new segment, {@code null} if the remaining part is too small to be split
+     */
+    public synchronized Segment split(long minSize) {
+        if (end < 0 || end - position < 2 * minSize)
+            return null;
+
+        long middle = position + (end - position) / 2;
+        Segment tail = state.createSegment(middle, end);
+        end = middle;
+        return tail;
+    }
+
+    /**
+     * Registers a failed attempt to download the segment.
+     *
+     * @param progressed whether the attempt downloaded anything
+     * @return number of consecutive failed attempts without progress, including this one
+     */
+    public synchronized int onAttemptFailed(boolean progressed) {
+        failedAttempts = progressed ? 1 : failedAttempts + 1;
+        return failedAttempts;
+    }
+
+    /**
+     * Drops all the progress, so the segment can be downloaded from the start again.
+     *
+     * @return number of bytes dropped
+     */
+    public synchronized long reset() {
+        long dropped = position - start;
+        position = start;
+        return dropped;
+    }
+}
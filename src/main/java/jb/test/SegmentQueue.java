@@ -0,0 +1,93 @@
+package jb.test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Segments waiting for a request, queued per origin (scheme, host and port) of their tasks.
+ * Origins are served round-robin, so a long list of URLs of one host doesn't delay other hosts.
+ * Not thread-safe.
+ */
+class SegmentQueue {
+    private final Map<String, Deque<Segment>> queues = new HashMap<>();
+    // origins with queued segments, the one served longest ago first
+    private final Deque<String> origins = new ArrayDeque<>();
+    private int size = 0;
+
+    public void add(Segment segment) {
+        String origin = ConnectionLimiter.getOrigin(segment.getState().getTask().getURL());
+        Deque<Segment> queue = queues.get(origin);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(origin, queue);
+            origins.add(origin);
+        }
+        queue.add(segment);
+        size++;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return up to {@code count} segments in the order they would be served if none was declined
+     */
+    public List<Segment> peek(int count) {
+        List<Segment> result = new ArrayList<>(Math.min(count, size));
+        List<Iterator<Segment>> turns = new ArrayList<>(origins.size());
+        for (String origin : origins)
+            turns.add(queues.get(origin).iterator());
+        while (result.size() < count && !turns.isEmpty()) {
+            for (Iterator<Iterator<Segment>> it = turns.iterator(); it.hasNext() && result.size() < count; ) {
+                Iterator<Segment> queue = it.next();
+                result.add(queue.next());
+                if (!queue.hasNext())
+                    it.remove();
+            }
+        }
+        return result;
+    }
+
+    /**<p>
+     * Offers the first segments of the origins to {@code consumer} in turns, one segment of an origin per turn,
+     * until it declines a segment of every origin.
+     * </p><p>
+     * An origin whose segment is declined isn't offered anything else during this call
+     * and keeps its place in the order, e.g. while it has no free connections.
+     * </p>
+     *
+     * @param consumer returns {@code true} if it takes the segment
+     */
+    public void serve(Predicate<Segment> consumer) {
+        List<String> declined = new ArrayList<>();
+        while (!origins.isEmpty()) {
+            String origin = origins.remove();
+            Deque<Segment> queue = queues.get(origin);
+            if (!consumer.test(queue.peek())) {
+                declined.add(origin);
+                continue;
+            }
+
+            queue.remove();
+            size--;
+            if (queue.isEmpty())
+                queues.remove(origin);
+            else
+                origins.add(origin);
+        }
+
+        for (int i = declined.size() - 1; i >= 0; --i)
+            origins.addFirst(declined.get(i));
+    }
+}
@@ -0,0 +1,45 @@
+package jb.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**<p>
+ * {@link DownloadingTask} which is able to accept data chunks at arbitrary offsets.
+ * </p><p>
+ * If the server supports byte ranges and reports the content length, the downloader
+ * may split such task into several segments and download them concurrently. In this case
+ * {@link #onChunkReceived(long, ByteBuffer)} is called instead of {@link #onChunkReceived(ByteBuffer)}
+ * and, unlike other callbacks, may be called simultaneously from different threads
+ * for disjoint ranges. {@link #onStart(java.util.Optional)} is still called exactly once before any chunk
+ * and {@link #onSuccess()}, {@link #onFailure(Throwable)} and {@link #onDiscard()}
+ * are called only when no chunk is being processed.
+ * </p>
+ */
+public interface SegmentedDownloadingTask extends DownloadingTask {
+    /**
+     * Is called before the downloading begins to find out which parts of the content are already
+     * available (e.g. were downloaded by a previous run), they won't be downloaded again.
+     * Is called only if the server supports byte ranges.
+     *
+     * @param contentLength content length reported by the server
+     * @param validator     ETag or Last-Modified value identifying the content version,
+     *                      {@code empty} if the server didn't send any
+     * @return ranges which are already available
+     * @throws IOException if any error is occurred (see "Error handling strategy")
+     */
+    default List<ByteRange> getCompletedRanges(long contentLength, Optional<String> validator) throws IOException {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Is called when a data chunk is ready for processing.
+     *
+     * @param offset absolute offset of the chunk in the downloaded content
+     * @param chunk  read-only data chunk, its content is valid only until the method returns
+     * @throws IOException if any error is occurred (see "Error handling strategy")
+     */
+    void onChunkReceived(long offset, ByteBuffer chunk) throws IOException;
+}
@@ -0,0 +1,522 @@
+package jb.test;
+
+import jb.test.util.Event;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**<p>
+ * {@link Downloader} which serves all connections by a few event loop threads with non-blocking sockets,
+ * so the number of simultaneous connections isn't limited by the number of threads. The threads count
+ * of {@link #run(Collection, int)} and {@link #setThreadsCount(int)} is the maximal number of connections.
+ * </p><p>
+ * It's a minimal HTTP/1.1 client: a single GET request per connection without a HEAD request before it,
+ * redirects, chunked transfer encoding and HTTPS via {@link SSLEngine} are supported, proxies and timeouts aren't.
+ * A task which is cancelled because of decrease of the connections count is continued from
+ * the last received byte if the server supports byte ranges.
+ * </p><p>
+ * Task callbacks are called from the event loop threads, so a slow callback delays other connections of its loop.
+ * </p>
+ */
+public class SelectorDownloader implements Downloader {
+    private static final int MAX_REDIRECTS = 5;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Maximal number of simultaneous blocking host lookups
+    private static final int LOOKUP_CONCURRENCY = 16;
+
+    private enum State {
+        NOT_STARTED, RUNNING, STOPPED
+    }
+
+    private final int nLoops;
+    private final SSLContext sslContext;
+    private EventLoop[] loops;
+    // host names are resolved by blocking calls on a few threads of their own
+    private ThreadPoolExecutor lookupExecutor;
+    private HostResolver resolver;
+    private final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+    private volatile State runningState = State.NOT_STARTED;
+    private final Object stateLock = new Object();
+    private boolean terminated = false;
+
+    // parts of synchronized state
+    private final Deque<Transfer> queuedTransfers = new ArrayDeque<>();
+    private final List<Transfer> activeTransfers = new ArrayList<>();
+    private int pendingCancels = 0;
+    private int maxConnections;
+
+    private volatile ProgressTable progress = new ProgressTable(0);
+
+    private final Event changedEvent = new Event();
+
+    public SelectorDownloader() {
+        this(Math.min(4, Runtime.getRuntime().availableProcessors()), null);
+    }
+
+    /**
+     * @param nLoops     number of event loop threads
+     * @param sslContext context of HTTPS connections, {@code null} for the default one
+     */
+    public SelectorDownloader(int nLoops, SSLContext sslContext) {
+        if (nLoops < 1)
+            throw new IllegalArgumentException("nLoops < 1");
+
+        this.nLoops = nLoops;
+        this.sslContext = sslContext;
+    }
+
+    @Override
+    public void run(Collection<? extends DownloadingTask> tasks, int nThreads) throws InterruptedException {
+        synchronized (stateLock) {
+            if (runningState != State.NOT_STARTED)
+                throw new IllegalStateException("Can only be ran once");
+            runningState = State.RUNNING;
+
+            loops = new EventLoop[nLoops];
+            try {
+                for (int i = 0; i < nLoops; ++i)
+                    loops[i] = new EventLoop("selector-downloader-" + i);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lookupExecutor = new ThreadPoolExecutor(LOOKUP_CONCURRENCY, LOOKUP_CONCURRENCY, Long.MAX_VALUE, TimeUnit.NANOSECONDS, new LinkedBlockingDeque<>());
+            resolver = new HostResolver(lookupExecutor);
+        }
+
+        ProgressTable progress = new ProgressTable(tasks.size());
+        synchronized (this) {
+            maxConnections = nThreads;
+            int nTransfers = 0;
+            for (DownloadingTask task : tasks) {
+                ProgressData progressData = progress.get(nTransfers++);
+                queuedTransfers.add(new Transfer(task, progressData, loops[nTransfers % nLoops]));
+            }
+        }
+        this.progress = progress;
+
+        while (runningState != State.STOPPED && update()) {
+            changedEvent.waitFor();
+        }
+
+        synchronized (stateLock) {
+            terminate();
+        }
+    }
+
+    @Override
+    public Progress getProgress() {
+        return progress.getProgress();
+    }
+
+    @Override
+    public synchronized void setThreadsCount(int nThreads) {
+        if (nThreads < 1)
+            throw new IllegalArgumentException("nThreads < 1");
+
+        this.maxConnections = nThreads;
+        changedEvent.fire();
+    }
+
+    @Override
+    public void close() {
+        synchronized (stateLock) {
+            if (runningState == State.RUNNING) {
+                synchronized (this) {
+                    for (Transfer transfer : activeTransfers)
+                        transfer.loop.execute(transfer::discard);
+                }
+            }
+            runningState = State.STOPPED;
+            terminate();
+        }
+        changedEvent.fire();
+    }
+
+    private synchronized boolean update() {
+        if (queuedTransfers.isEmpty() && activeTransfers.isEmpty() && pendingCancels == 0)
+            return false;
+
+        while (activeTransfers.size() > maxConnections) {
+            // the most recent one has the least progress
+            Transfer transfer = activeTransfers.remove(activeTransfers.size() - 1);
+            pendingCancels++;
+            transfer.loop.execute(transfer::cancel);
+        }
+
+        while (activeTransfers.size() < maxConnections && !queuedTransfers.isEmpty()) {
+            Transfer transfer = queuedTransfers.remove();
+            activeTransfers.add(transfer);
+            transfer.loop.execute(transfer::start);
+        }
+
+        return true;
+    }
+
+    private synchronized void onTransferFinished(Transfer transfer) {
+        activeTransfers.remove(transfer);
+        changedEvent.fire();
+    }
+
+    /**
+     * @param resume whether the transfer should be continued later
+     */
+    private synchronized void onTransferCancelled(Transfer transfer, boolean resume) {
+        pendingCancels--;
+        if (resume)
+            queuedTransfers.add(transfer);
+        changedEvent.fire();
+    }
+
+    private void terminate() {
+        if (loops == null || terminated)
+            return;
+
+        terminated = true;
+        lookupExecutor.shutdownNow();
+        for (EventLoop loop : loops) {
+            try {
+                loop.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private SSLContext getSSLContext() throws IOException {
+        if (sslContext != null)
+            return sslContext;
+        try {
+            return SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static int getPort(URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    /**
+     * Downloading of a task. All methods but the constructor are called from the thread of its event loop.
+     */
+    private class Transfer implements EventLoop.Handler, HttpResponseParser.Listener {
+        private final DownloadingTask task;
+        private final ProgressData progressData;
+        private final EventLoop loop;
+
+        private URL url;
+        private int redirects = 0;
+        private boolean started = false;
+        private boolean rangesSupported = false;
+        private Optional<String> validator = Optional.empty();
+        private long position = 0;
+
+        // state of the current attempt, which includes all its redirects
+        private boolean active = false;
+        private int attempt = 0;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private NioTransport transport;
+        private ByteBuffer request;
+        private HttpResponseParser parser;
+        private URL redirect;
+
+        Transfer(DownloadingTask task, ProgressData progressData, EventLoop loop) {
+            this.task = task;
+            this.progressData = progressData;
+            this.loop = loop;
+            this.url = task.getURL();
+        }
+
+        public void start() {
+            active = true;
+            attempt++;
+            resolve();
+        }
+
+        /**
+         * Stops the transfer because of decrease of the connections count.
+         */
+        public void cancel() {
+            if (!active) {
+                // already finished
+                onTransferCancelled(this, false);
+                return;
+            }
+
+            closeConnection();
+            active = false;
+            boolean resume = true;
+            try {
+                if (!rangesSupported && position > 0) {
+                    position = 0;
+                    progressData.resetDownloadedBytes();
+                    try {
+                        task.onCancel();
+                    } catch (IOException | RuntimeException e) {
+                        resume = false;
+                        task.onFailure(e);
+                    }
+                }
+            } finally {
+                onTransferCancelled(this, resume);
+            }
+        }
+
+        /**
+         * Stops the transfer because the downloader is closed.
+         */
+        public void discard() {
+            if (!active)
+                return;
+
+            closeConnection();
+            active = false;
+            try {
+                task.onDiscard();
+            } catch (IOException | RuntimeException e) {
+                task.onFailure(e);
+            }
+        }
+
+        private void resolve() {
+            URL target = url;
+            int resolvedAttempt = attempt;
+            // concurrent lookups of a host are merged, the results are cached
+            resolver.resolveAsync(target.getHost()).whenComplete((addresses, e) -> loop.execute(() -> {
+                if (!active || attempt != resolvedAttempt)
+                    return;
+                if (e == null)
+                    connect(new InetSocketAddress(addresses[0], getPort(target)));
+                else
+                    fail((UnknownHostException) e);
+            }));
+        }
+
+        private void connect(InetSocketAddress address) {
+            try {
+                String protocol = url.getProtocol();
+                if (!"http".equals(protocol) && !"https".equals(protocol))
+                    throw new IOException("Unsupported protocol: " + url);
+
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+                if (channel.connect(address))
+                    onConnected();
+            } catch (IOException | RuntimeException e) {
+                // a runtime error of a task callback fails only its own transfer
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onReady(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    if (channel.finishConnect())
+                        onConnected();
+                } else {
+                    process();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private void onConnected() throws IOException {
+            if ("https".equals(url.getProtocol())) {
+                SSLEngine engine = getSSLContext().createSSLEngine(url.getHost(), getPort(url));
+                engine.setUseClientMode(true);
+                SSLParameters parameters = engine.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(parameters);
+                transport = new TlsTransport(channel, engine);
+            } else {
+                transport = new NioTransport.Plain(channel);
+            }
+            request = createRequest();
+            parser = new HttpResponseParser(this);
+            process();
+        }
+
+        private void process() throws IOException {
+            if (!transport.handshake() || request.hasRemaining() && !transport.write(request)) {
+                updateInterest();
+                return;
+            }
+
+            ByteBuffer buffer = readBuffer.get();
+            while (active) {
+                buffer.clear();
+                int bytesRead = transport.read(buffer);
+                if (bytesRead == 0)
+                    break;
+
+                boolean complete;
+                if (bytesRead < 0) {
+                    complete = parser.onEndOfStream();
+                    if (!complete && redirect == null)
+                        throw new IOException(String.format("Connection to %s closed unexpectedly", url));
+                } else {
+                    buffer.flip();
+                    complete = parser.feed(buffer);
+                }
+
+                if (redirect != null) {
+                    followRedirect();
+                    return;
+                }
+                if (complete) {
+                    succeed();
+                    return;
+                }
+            }
+            if (active)
+                updateInterest();
+        }
+
+        @Override
+        public void onHeaders(int statusCode, Map<String, String> headers) throws IOException {
+            String location = headers.get("Location");
+            if (statusCode / 100 == 3 && statusCode != 304 && location != null) {
+                if (++redirects > MAX_REDIRECTS)
+                    throw new IOException(String.format("Too many redirects from %s", task.getURL()));
+                redirect = new URL(url, location);
+                return;
+            }
+            if (statusCode / 100 != 2)
+                throw new HttpStatusException(String.format("Can't download %s (HTTP response code %d)", url, statusCode),
+                        statusCode, RetryPolicy.parseRetryAfter(headers.get("Retry-After")));
+
+            long length = -1;
+            if (statusCode == 206) {
+                length = HttpResponseParser.parseContentRangeTotal(headers.get("Content-Range"));
+            } else {
+                if (position > 0) {
+                    // the server sent the whole content
+                    position = 0;
+                    progressData.resetDownloadedBytes();
+                    task.onCancel();
+                }
+                String contentLength = headers.get("Content-Length");
+                if (contentLength != null && !headers.containsKey("Transfer-Encoding"))
+                    length = Long.parseLong(contentLength);
+            }
+            rangesSupported = statusCode == 206 || "bytes".equalsIgnoreCase(headers.get("Accept-Ranges"));
+
+            if (length >= 0)
+                progressData.setTotalBytes(length);
+            if (!started) {
+                started = true;
+                String eTag = headers.get("ETag");
+                validator = Optional.ofNullable(eTag != null && !eTag.startsWith("W/") ? eTag : headers.get("Last-Modified"));
+                task.onStart(length >= 0 ? Optional.of(length) : Optional.empty());
+            }
+        }
+
+        @Override
+        public void onBody(ByteBuffer data) throws IOException {
+            if (redirect != null)
+                return;
+
+            int length = data.remaining();
+            position += length;
+            progressData.addDownloadedBytes(length);
+            task.onChunkReceived(data.asReadOnlyBuffer());
+        }
+
+        private ByteBuffer createRequest() {
+            StringBuilder request = new StringBuilder();
+            String file = url.getFile().isEmpty() ? "/" : url.getFile();
+            request.append("GET ").append(file).append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(url.getHost());
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort())
+                request.append(':').append(url.getPort());
+            request.append("\r\n");
+            request.append("Accept-Encoding: identity\r\n");
+            request.append("Connection: close\r\n");
+            if (position > 0) {
+                request.append("Range: bytes=").append(position).append("-\r\n");
+                if (validator.isPresent())
+                    request.append("If-Range: ").append(validator.get()).append("\r\n");
+            }
+            request.append("\r\n");
+            return ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        private void updateInterest() {
+            int ops = SelectionKey.OP_READ;
+            if (transport.hasPendingOutput() || request.hasRemaining())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        private void followRedirect() {
+            closeConnection();
+            url = redirect;
+            redirect = null;
+            resolve();
+        }
+
+        private void succeed() {
+            closeConnection();
+            active = false;
+            try {
+                task.onSuccess();
+            } catch (IOException | RuntimeException e) {
+                task.onFailure(e);
+            } finally {
+                onTransferFinished(this);
+            }
+        }
+
+        private void fail(Exception cause) {
+            if (!active)
+                return;
+
+            closeConnection();
+            active = false;
+            try {
+                task.onFailure(cause);
+            } finally {
+                onTransferFinished(this);
+            }
+        }
+
+        private void closeConnection() {
+            if (key != null)
+                key.cancel();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+            channel = null;
+            key = null;
+            transport = null;
+            request = null;
+            parser = null;
+        }
+    }
+}
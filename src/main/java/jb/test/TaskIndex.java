@@ -0,0 +1,43 @@
+package jb.test;
+
+/**
+ * Finds the number of a task in the list passed to a downloader. It's an open addressing table of ints,
+ * so it takes a few bytes per task instead of an entry object of a hash map. Tasks are compared by identity.
+ */
+class TaskIndex {
+    private final DownloadingTask[] tasks;
+    // task number + 1, 0 for an empty slot
+    private final int[] slots;
+
+    TaskIndex(DownloadingTask[] tasks) {
+        this.tasks = tasks;
+        // at most a half of the slots is taken, so the probe sequences stay short
+        slots = new int[Integer.highestOneBit(Math.max(2, tasks.length * 2 - 1)) << 1];
+        for (int i = 0; i < tasks.length; ++i) {
+            int slot = findSlot(tasks[i]);
+            // the first occurrence of a task is found
+            if (slots[slot] == 0)
+                slots[slot] = i + 1;
+        }
+    }
+
+    /**
+     * @return number of the task, -1 if it isn't in the list
+     */
+    public int indexOf(DownloadingTask task) {
+        return slots[findSlot(task)] - 1;
+    }
+
+    private int findSlot(DownloadingTask task) {
+        int mask = slots.length - 1;
+        int slot = hash(task) & mask;
+        while (slots[slot] != 0 && tasks[slots[slot] - 1] != task)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int hash(DownloadingTask task) {
+        int h = System.identityHashCode(task) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,233 @@
+package jb.test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Downloading state of a task shared by all its segments.
+ * Makes sure that task's lifecycle callbacks are called once and only when no segment is running.
+ */
+class TaskState {
+    private final DownloadingTask task;
+    private final ProgressData progress;
+    private final List<Mirror> mirrors;
+    private volatile boolean rangesSupported = false;
+    private volatile Optional<String> validator = Optional.empty();
+
+    private boolean started = false;
+    private boolean finished = false;
+    private int pendingSegments = 0;
+    private int runningSegments = 0;
+    private volatile Throwable failure = null;
+    private int failedProbes = 0;
+    private Runnable finishListener = () -> {};
+
+    TaskState(DownloadingTask task, ProgressData progress) {
+        this.task = task;
+        this.progress = progress;
+
+        List<Mirror> mirrors = new ArrayList<>();
+        mirrors.add(new Mirror(task.getURL()));
+        for (URL url : task.getMirrors())
+            mirrors.add(new Mirror(url));
+        this.mirrors = Collections.unmodifiableList(mirrors);
+    }
+
+    /**
+     * Sets the action run after the last callback of the task.
+     */
+    public synchronized void setFinishListener(Runnable finishListener) {
+        this.finishListener = finishListener;
+    }
+
+    public DownloadingTask getTask() {
+        return task;
+    }
+
+    public ProgressData getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return all sources of the content, the task's own URL is the first one
+     */
+    public List<Mirror> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * @return {@code true} if the content length and validator were received from any mirror
+     */
+    public boolean isProbed() {
+        for (Mirror mirror : mirrors) {
+            if (mirror.isProbed())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops using the mirror if there's any other source left.
+     *
+     * @return {@code true} if the mirror is dropped
+     */
+    public synchronized boolean dropMirror(Mirror mirror) {
+        if (mirror.isDropped())
+            return true;
+        for (Mirror other : mirrors) {
+            if (other != mirror && !other.isDropped()) {
+                mirror.drop();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isRangesSupported() {
+        return rangesSupported;
+    }
+
+    public void setRangesSupported(boolean rangesSupported) {
+        this.rangesSupported = rangesSupported;
+    }
+
+    /**
+     * @return ETag or Last-Modified value identifying the content version
+     */
+    public Optional<String> getValidator() {
+        return validator;
+    }
+
+    public void setValidator(Optional<String> validator) {
+        this.validator = validator;
+    }
+
+    public boolean isSegmented() {
+        return task instanceof SegmentedDownloadingTask && rangesSupported;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Registers a failed probe of the task.
+     *
+     * @return number of failed probes, including this one
+     */
+    public synchronized int onProbeFailed() {
+        return ++failedProbes;
+    }
+
+    public synchronized Segment createSegment(long start, long end) {
+        pendingSegments++;
+        return new Segment(this, start, end);
+    }
+
+    public synchronized void onSegmentStarted() {
+        runningSegments++;
+    }
+
+    /**
+     * Calls {@link DownloadingTask#onStart(Optional)} if it wasn't called yet.
+     */
+    public synchronized void start(Optional<Long> contentLength) throws IOException {
+        if (started)
+            return;
+        started = true;
+        task.onStart(contentLength);
+    }
+
+    /**
+     * Finishes the task which has no data left to download.
+     */
+    public synchronized void finish(Optional<Long> contentLength) {
+        try {
+            start(contentLength);
+            finished = true;
+            task.onSuccess();
+        } catch (IOException e) {
+            finished = true;
+            task.onFailure(e);
+        }
+        finishListener.run();
+    }
+
+    /**
+     * Fails the task which has no segments, e.g. its probe failed.
+     */
+    public synchronized void fail(Throwable cause) {
+        if (finished)
+            return;
+        finished = true;
+        task.onFailure(cause);
+        finishListener.run();
+    }
+
+    public synchronized void onSegmentSucceeded() {
+        runningSegments--;
+        pendingSegments--;
+        if (failure != null) {
+            // another segment has failed, the data of this one doesn't complete the task
+            failIfStopped();
+            return;
+        }
+        if (pendingSegments > 0 || finished)
+            return;
+
+        finished = true;
+        try {
+            task.onSuccess();
+        } catch (IOException e) {
+            task.onFailure(e);
+        }
+        finishListener.run();
+    }
+
+    /**
+     * Segment stopped but it will be downloaded later, unless another segment has failed meanwhile
+     */
+    public synchronized void onSegmentCancelled() {
+        runningSegments--;
+        if (failure != null)
+            failIfStopped();
+    }
+
+    public synchronized void onSegmentFailed(Throwable cause) {
+        runningSegments--;
+        pendingSegments--;
+        if (failure == null)
+            failure = cause;
+        failIfStopped();
+    }
+
+    /**
+     * Fails the task once no segment of it is running, the segments left aren't downloaded.
+     */
+    private void failIfStopped() {
+        if (runningSegments > 0 || finished)
+            return;
+
+        finished = true;
+        task.onFailure(failure);
+        finishListener.run();
+    }
+
+    public synchronized void onSegmentDiscarded() {
+        runningSegments--;
+        if (runningSegments > 0 || finished)
+            return;
+
+        finished = true;
+        try {
+            task.onDiscard();
+        } catch (IOException e) {
+            task.onFailure(e);
+        }
+        finishListener.run();
+    }
+}
@@ -0,0 +1,83 @@
+package jb.test;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * {@link SSLSocketFactory} which measures TLS handshakes of HTTPS connections. All connections share
+ * the session cache of the factory's {@link javax.net.ssl.SSLContext}, so connections to an origin
+ * after the first one resume its session with an abbreviated handshake.
+ */
+class TlsSocketFactory extends SSLSocketFactory {
+    // creation time of the last TLS socket of the thread, the handshake follows immediately
+    private static final ThreadLocal<Long> handshakeStart = new ThreadLocal<>();
+
+    private final SSLSocketFactory delegate;
+
+    TlsSocketFactory(SSLSocketFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Forgets the socket created by the current thread before.
+     */
+    static void resetHandshake() {
+        handshakeStart.remove();
+    }
+
+    /**
+     * Is called after a connection is established by the current thread.
+     *
+     * @return duration of the TLS handshake in nanoseconds, -1 if no new TLS connection was created
+     * since {@link #resetHandshake()} (e.g. an idle connection was reused)
+     */
+    static long takeHandshakeNanos() {
+        Long start = handshakeStart.get();
+        handshakeStart.remove();
+        return start != null ? System.nanoTime() - start : -1;
+    }
+
+    // createSocket() isn't supported, so HttpsURLConnection connects a plain socket and layers TLS over it
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        handshakeStart.set(System.nanoTime());
+        return delegate.createSocket(socket, host, port, autoClose);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        handshakeStart.set(System.nanoTime());
+        return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        handshakeStart.set(System.nanoTime());
+        return delegate.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        handshakeStart.set(System.nanoTime());
+        return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        handshakeStart.set(System.nanoTime());
+        return delegate.createSocket(address, port, localAddress, localPort);
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+}
@@ -0,0 +1,179 @@
+package jb.test;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link NioTransport} encrypting the stream with an {@link SSLEngine} in client mode.
+ */
+class TlsTransport extends NioTransport {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    // received from the channel but not unwrapped yet, write mode
+    private ByteBuffer netIn;
+    // wrapped but not sent yet, read mode
+    private ByteBuffer netOut;
+    // unwrapped but not read yet, read mode
+    private ByteBuffer appIn;
+    private boolean endOfStream = false;
+
+    TlsTransport(SocketChannel channel, SSLEngine engine) throws SSLException {
+        super(channel);
+        this.engine = engine;
+        netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        netOut.flip();
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        appIn.flip();
+        engine.beginHandshake();
+    }
+
+    @Override
+    public boolean handshake() throws IOException {
+        while (flush()) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            switch (status) {
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    return true;
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                        task.run();
+                    break;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                default:
+                    // NEED_UNWRAP and NEED_UNWRAP_AGAIN of newer JDKs
+                    if (endOfStream)
+                        throw new SSLException("Connection closed during TLS handshake");
+                    if (!unwrap())
+                        return false;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (!appIn.hasRemaining()) {
+            if (endOfStream)
+                return -1;
+            // e.g. session tickets are received after the handshake
+            if (!handshake() || !unwrap())
+                return 0;
+        }
+
+        int length = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer part = appIn.duplicate();
+        part.limit(part.position() + length);
+        dst.put(part);
+        appIn.position(appIn.position() + length);
+        return length;
+    }
+
+    @Override
+    public boolean write(ByteBuffer src) throws IOException {
+        while (flush()) {
+            if (!src.hasRemaining())
+                return true;
+            wrap(src);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * @return {@code true} if all wrapped data is sent
+     */
+    private boolean flush() throws IOException {
+        if (netOut.hasRemaining())
+            channel.write(netOut);
+        return !netOut.hasRemaining();
+    }
+
+    private void wrap(ByteBuffer src) throws IOException {
+        netOut.compact();
+        try {
+            while (true) {
+                SSLEngineResult result = engine.wrap(src, netOut);
+                switch (result.getStatus()) {
+                    case OK:
+                        return;
+                    case BUFFER_OVERFLOW:
+                        netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                        break;
+                    default:
+                        throw new SSLException("Unexpected TLS state on write: " + result.getStatus());
+                }
+            }
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    /**
+     * Unwraps the received data, reads more from the channel if needed.
+     *
+     * @return {@code false} if the channel has no data yet
+     */
+    private boolean unwrap() throws IOException {
+        while (true) {
+            SSLEngineResult result;
+            netIn.flip();
+            appIn.compact();
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+                appIn.flip();
+            }
+
+            switch (result.getStatus()) {
+                case OK:
+                    return true;
+                case CLOSED:
+                    endOfStream = true;
+                    return true;
+                case BUFFER_OVERFLOW:
+                    appIn.compact();
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    appIn.flip();
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining())
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                    int bytesRead = channel.read(netIn);
+                    if (bytesRead < 0) {
+                        // the server didn't send close_notify, the response parser detects truncation
+                        endOfStream = true;
+                        return true;
+                    }
+                    if (bytesRead == 0)
+                        return false;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @param buffer buffer in write mode
+     * @return buffer in write mode with the same content and at least {@code minFree} free bytes
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minFree) {
+        ByteBuffer result = ByteBuffer.allocate(buffer.position() + Math.max(minFree, buffer.capacity()));
+        buffer.flip();
+        result.put(buffer);
+        return result;
+    }
+}
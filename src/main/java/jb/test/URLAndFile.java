@@ -2,10 +2,14 @@ package jb.test;
 
 import java.net.URL;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class URLAndFile {
     private final URL url;
     private final Path path;
+    private final List<URL> mirrors = new ArrayList<>();
 
     URLAndFile(URL url, Path path) {
         this.url = url;
@@ -19,4 +23,15 @@ public class URLAndFile {
     public Path getPath() {
         return path;
     }
+
+    /**
+     * @return other URLs of the same content
+     */
+    public List<URL> getMirrors() {
+        return Collections.unmodifiableList(mirrors);
+    }
+
+    void addMirror(URL mirror) {
+        mirrors.add(mirror);
+    }
 }
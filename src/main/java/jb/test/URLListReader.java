@@ -0,0 +1,106 @@
+package jb.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+/**<p>
+ * Reads a list of URLs line by line, so a list of any length takes little memory.
+ * A line is {@code <URL><TAB><filename>[<TAB><mirror>...]}, empty lines and lines starting with {@code #} are ignored.
+ * Malformed lines are skipped and counted. A gzipped list is recognized by its header.
+ * </p><p>
+ * Errors of reading are thrown as {@link UncheckedIOException}.
+ * </p>
+ */
+public class URLListReader implements Iterator<URLAndFile>, Closeable {
+    private final BufferedReader reader;
+    private URLAndFile next = null;
+    private int skippedLines = 0;
+
+    public URLListReader(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(2);
+        int magic = buffered.read() | buffered.read() << 8;
+        buffered.reset();
+        InputStream content = magic == GZIPInputStream.GZIP_MAGIC ? new GZIPInputStream(buffered) : buffered;
+        reader = new BufferedReader(new InputStreamReader(content, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param source file name, {@code -} for the standard input
+     */
+    public static URLListReader open(String source) throws IOException {
+        if (source.equals("-"))
+            return new URLListReader(System.in);
+        return new URLListReader(Files.newInputStream(Paths.get(source)));
+    }
+
+    /**
+     * @return number of malformed lines skipped so far
+     */
+    public int getSkippedLines() {
+        return skippedLines;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            String line;
+            while (next == null && (line = reader.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#"))
+                    continue;
+                next = parseLine(line);
+                if (next == null)
+                    skippedLines++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return next != null;
+    }
+
+    @Override
+    public URLAndFile next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        URLAndFile result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * @return the URL and the file, {@code null} if the line is malformed
+     */
+    private static URLAndFile parseLine(String line) {
+        String[] fields = line.split("\t");
+        if (fields.length < 2)
+            return null;
+
+        try {
+            URLAndFile result = new URLAndFile(new URL(fields[0].trim()), Paths.get(fields[1].trim()).normalize());
+            for (int i = 2; i < fields.length; ++i)
+                result.addMirror(new URL(fields[i].trim()));
+            return result;
+        } catch (MalformedURLException | InvalidPathException e) {
+            return null;
+        }
+    }
+}
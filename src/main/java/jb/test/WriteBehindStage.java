@@ -0,0 +1,263 @@
+package jb.test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**<p>
+ * Writes downloaded chunks to files on its own I/O threads, so a slow disk doesn't stall the connections.
+ * Chunks are copied to a bounded queue of the file, a thread which adds a chunk to a full queue waits
+ * until the queue is written. Queued chunks are written in batches: contiguous ones by a single gather write.
+ * A file can be synced by the I/O thread after its queued chunks, see {@link FileQueue#requestSync()}.
+ * </p><p>
+ * A stage can be shared by many files, see {@link RandomAccessFileDownloadingTask#setWriteBehind(WriteBehindStage)}.
+ * It should be closed after the downloading is finished.
+ * </p>
+ */
+public class WriteBehindStage implements Closeable {
+    // Default memory taken by the queued chunks of a file
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+
+    private final Executor executor;
+    private final long maxQueuedBytes;
+    private final BufferPool bufferPool = new BufferPool();
+
+    /**
+     * @param nThreads       number of I/O threads
+     * @param maxQueuedBytes memory taken by the queued chunks of a file, the queue is full beyond that
+     */
+    public WriteBehindStage(int nThreads, long maxQueuedBytes) {
+        this(new ThreadPoolExecutor(nThreads, nThreads, Long.MAX_VALUE, TimeUnit.NANOSECONDS, new LinkedBlockingDeque<>()),
+                maxQueuedBytes);
+    }
+
+    WriteBehindStage(Executor executor, long maxQueuedBytes) {
+        if (maxQueuedBytes < 1)
+            throw new IllegalArgumentException("maxQueuedBytes < 1");
+
+        this.executor = executor;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Stops the I/O threads, queues which aren't flushed yet fail.
+     */
+    @Override
+    public void close() {
+        if (executor instanceof ExecutorService)
+            ((ExecutorService) executor).shutdown();
+    }
+
+    /**
+     * @return new queue of writes to the file
+     */
+    FileQueue createQueue(FileChannel channel) {
+        return new FileQueue(channel);
+    }
+
+    private static class Write {
+        final long offset;
+        final byte[] buffer;
+        final int length;
+
+        Write(long offset, byte[] buffer, int length) {
+            this.offset = offset;
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Writes of a single file, they're written by one I/O thread at a time.
+     * An error of a write is thrown by the following calls of the queue.
+     */
+    class FileQueue {
+        private final FileChannel channel;
+
+        // guarded by this
+        private final Deque<Write> writes = new ArrayDeque<>();
+        private long queuedBytes = 0;
+        private boolean draining = false;
+        private boolean syncRequested = false;
+        private volatile IOException failure = null;
+
+        FileQueue(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Copies the chunk to the queue, waits while the queue is full.
+         *
+         * @param offset position of the chunk in the file
+         */
+        public void add(long offset, ByteBuffer chunk) throws IOException {
+            while (chunk.hasRemaining()) {
+                byte[] buffer = bufferPool.acquire(chunk.remaining());
+                int length = Math.min(buffer.length, chunk.remaining());
+                try {
+                    reserve(buffer.length);
+                } catch (IOException e) {
+                    bufferPool.release(buffer);
+                    throw e;
+                }
+                chunk.get(buffer, 0, length);
+
+                boolean start;
+                synchronized (this) {
+                    writes.add(new Write(offset, buffer, length));
+                    start = !draining;
+                    draining = true;
+                }
+                if (start)
+                    startDrain();
+                offset += length;
+            }
+        }
+
+        /**
+         * Makes the I/O thread sync the file after writing the chunks queued so far, doesn't wait for that.
+         * An error of the sync is thrown by the following calls of the queue.
+         */
+        public void requestSync() {
+            boolean start;
+            synchronized (this) {
+                syncRequested = true;
+                start = !draining;
+                draining = true;
+            }
+            if (start)
+                startDrain();
+        }
+
+        /**
+         * Waits until all the queued chunks are written.
+         */
+        public synchronized void flush() throws IOException {
+            try {
+                while (draining && failure == null)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the writes");
+            }
+            checkFailure();
+        }
+
+        private synchronized void reserve(int size) throws IOException {
+            try {
+                // a chunk is taken by an empty queue regardless of its size
+                while (failure == null && queuedBytes > 0 && queuedBytes + size > maxQueuedBytes)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the writes");
+            }
+            checkFailure();
+            queuedBytes += size;
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null)
+                throw new IOException("Writing of the file failed", failure);
+        }
+
+        private void startDrain() {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                onDrained(takeWrites(), new IOException("Write-behind stage is closed", e));
+            }
+        }
+
+        private synchronized boolean takeSyncRequest() {
+            boolean requested = syncRequested;
+            syncRequested = false;
+            return requested;
+        }
+
+        private synchronized List<Write> takeWrites() {
+            List<Write> batch = new ArrayList<>(writes);
+            writes.clear();
+            return batch;
+        }
+
+        private void drain() {
+            while (true) {
+                // the batch includes all the chunks queued before the sync was requested
+                boolean sync = takeSyncRequest();
+                List<Write> batch = takeWrites();
+                IOException error = null;
+                try {
+                    if (failure == null)
+                        write(batch);
+                    if (failure == null && sync)
+                        channel.force(false);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    // e.g. the channel isn't writable, waiters must not hang anyway
+                    error = new IOException(e);
+                }
+                if (!onDrained(batch, error))
+                    return;
+            }
+        }
+
+        /**
+         * Releases the written chunks.
+         *
+         * @return {@code true} if more chunks or a sync were requested meanwhile
+         */
+        private synchronized boolean onDrained(List<Write> batch, IOException error) {
+            for (Write write : batch) {
+                queuedBytes -= write.buffer.length;
+                bufferPool.release(write.buffer);
+            }
+            if (error != null && failure == null)
+                failure = error;
+            draining = !writes.isEmpty() || syncRequested && failure == null;
+            notifyAll();
+            return draining;
+        }
+
+        /**
+         * Writes the chunks ordered by their offsets, contiguous ones by a single call.
+         */
+        private void write(List<Write> batch) throws IOException {
+            // chunks of a batch never overlap, a queue is flushed before a range is written again
+            batch.sort(Comparator.comparingLong(w -> w.offset));
+            int start = 0;
+            while (start < batch.size()) {
+                int end = start + 1;
+                while (end < batch.size() && batch.get(end).offset == batch.get(end - 1).offset + batch.get(end - 1).length)
+                    end++;
+
+                ByteBuffer[] buffers = new ByteBuffer[end - start];
+                long remaining = 0;
+                for (int i = start; i < end; ++i) {
+                    Write write = batch.get(i);
+                    buffers[i - start] = ByteBuffer.wrap(write.buffer, 0, write.length);
+                    remaining += write.length;
+                }
+                // the position of the channel is used by this queue only
+                channel.position(batch.get(start).offset);
+                while (remaining > 0)
+                    remaining -= channel.write(buffers);
+                start = end;
+            }
+        }
+    }
+}
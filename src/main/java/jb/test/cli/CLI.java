@@ -3,13 +3,17 @@ package jb.test.cli;
 import jb.test.*;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.nio.file.Path;
-import java.util.Collection;
-import java.util.stream.Collectors;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 interface CLITaskOwner {
-    void processSuccess(URL url, Path path);
+    void processSuccess(DownloadingTask task, Path path);
 
     void processError(URL url, Path path, Throwable e);
 }
@@ -26,7 +30,7 @@ class CLITask extends RandomAccessFileDownloadingTask {
     public void onSuccess() {
         try {
             super.onSuccess();
-            owner.processSuccess(getURL(), getPath());
+            owner.processSuccess(this, getPath());
 
         } catch (IOException e) {
             owner.processError(getURL(), getPath(), e);
@@ -41,7 +45,20 @@ class CLITask extends RandomAccessFileDownloadingTask {
 }
 
 public class CLI implements CLITaskOwner {
-    private Downloader downloader = null;
+    private static final long RETRY_INITIAL_DELAY = 500;
+    private static final long RETRY_MAX_DELAY = 30000;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+    // slower requests are hedged or restarted
+    private static final long MIN_THROUGHPUT = 1024;
+    // not more than the keep-alive cache holds per host, so every connection is reused
+    private static final int MAX_CONNECTIONS_PER_HOST = 5;
+    // the next tasks of other hosts start on open connections
+    private static final int PREWARMED_CONNECTIONS = 2;
+    // disk stalls don't throttle the connections
+    private static final int WRITE_BEHIND_THREADS = 2;
+
+    private DownloaderImpl downloader = null;
 
     public static void main(String[] args) {
         CmdLineInput input = CmdLineInput.parseCommandLine(args);
@@ -53,12 +70,34 @@ public class CLI implements CLITaskOwner {
     }
 
     private void process(CmdLineInput input) {
-        downloader = new DownloaderImpl();
+        DownloaderImpl downloaderImpl = new DownloaderImpl();
+        downloaderImpl.setRetryPolicy(new RetryPolicy(input.getMaxAttempts(), RETRY_INITIAL_DELAY, RETRY_MAX_DELAY));
+        downloaderImpl.setTimeouts(CONNECT_TIMEOUT, READ_TIMEOUT);
+        downloaderImpl.setMinThroughput(MIN_THROUGHPUT);
+        downloaderImpl.setConnectionLimits(MAX_CONNECTIONS_PER_HOST, Integer.MAX_VALUE);
+        downloaderImpl.setPrewarmedConnections(PREWARMED_CONNECTIONS);
+        downloader = downloaderImpl;
+        WriteBehindStage writeBehind = new WriteBehindStage(WRITE_BEHIND_THREADS, WriteBehindStage.DEFAULT_MAX_QUEUED_BYTES);
+        URLListReader urlList = null;
         try {
-            Collection<DownloadingTask> tasks =
-                    input.getURLs().stream()
-                            .map(urlAndFile -> new CLITask(urlAndFile.getURL(), urlAndFile.getPath(), this))
-                            .collect(Collectors.toList());
+            Stream<URLAndFile> urls = input.getURLs().stream();
+            if (input.getURLList().isPresent()) {
+                // the list is read while downloading, so it may be of any length
+                urlList = URLListReader.open(input.getURLList().get());
+                urls = Stream.concat(urls, StreamSupport.stream(
+                        Spliterators.spliteratorUnknownSize(urlList, Spliterator.ORDERED | Spliterator.NONNULL), false));
+            }
+            Iterator<DownloadingTask> tasks =
+                    urls.map(urlAndFile -> {
+                                CLITask task = new CLITask(urlAndFile.getURL(), urlAndFile.getPath(), this);
+                                task.setResumable(input.isResume());
+                                task.setMirrors(urlAndFile.getMirrors());
+                                task.setWriteBehind(writeBehind);
+                                task.setDurability(input.getDurability());
+                                task.setSyncInterval(input.getSyncInterval());
+                                return (DownloadingTask) task;
+                            })
+                            .iterator();
 
             try {
                 downloader.run(tasks, input.getNThreads());
@@ -66,8 +105,20 @@ public class CLI implements CLITaskOwner {
                 System.out.println("Interrupted");
                 Thread.currentThread().interrupt();
             }
+            if (urlList != null && urlList.getSkippedLines() > 0)
+                System.out.format("Skipped %d malformed lines of %s\n", urlList.getSkippedLines(), input.getURLList().get());
+        } catch (IOException | UncheckedIOException e) {
+            System.out.format("Reading %s failed (%s)\n", input.getURLList().orElse("URL list"), e);
         } finally {
             downloader.close();
+            writeBehind.close();
+            if (urlList != null) {
+                try {
+                    urlList.close();
+                } catch (IOException e) {
+                    // nothing is lost, the list is only read
+                }
+            }
         }
     }
 
@@ -84,8 +135,12 @@ public class CLI implements CLITaskOwner {
     }
 
     @Override
-    public synchronized void processSuccess(URL url, Path path) {
-        System.out.format("[%s] Downloaded %s to %s\n", getProgressStr(), url, path);
+    public synchronized void processSuccess(DownloadingTask task, Path path) {
+        Progress taskProgress = downloader.getProgress(task);
+        String handshakes = "";
+        if (taskProgress.getHandshakeCount() > 0)
+            handshakes = String.format(" (%d TLS handshakes, %d ms)", taskProgress.getHandshakeCount(), taskProgress.getHandshakeNanos() / 1000000);
+        System.out.format("[%s] Downloaded %s to %s%s\n", getProgressStr(), task.getURL(), path, handshakes);
     }
 
     @Override
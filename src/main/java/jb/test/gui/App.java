@@ -72,6 +72,12 @@ public class App {
             SwingUtilities.invokeLater(() -> updateProgressBar(false, null));
         }
 
+        @Override
+        public void onChunkReceived(long offset, ByteBuffer chunk) throws IOException {
+            super.onChunkReceived(offset, chunk);
+            SwingUtilities.invokeLater(() -> updateProgressBar(false, null));
+        }
+
         @Override
         public void onFailure(Throwable cause) {
             super.onFailure(cause);
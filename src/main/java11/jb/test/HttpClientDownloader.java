@@ -0,0 +1,389 @@
+package jb.test;
+
+import jb.test.util.Event;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+
+/**<p>
+ * {@link Downloader} based on {@link HttpClient}, which multiplexes requests to the same origin
+ * over a single HTTP/2 connection. Servers which don't negotiate HTTP/2 are served over HTTP/1.1
+ * with persistent connections reused between requests.
+ * The threads count of {@link #run(Collection, int)} and {@link #setThreadsCount(int)} is the maximal
+ * number of simultaneous requests.
+ * </p><p>
+ * Every task is downloaded by a single GET request without a HEAD request before it, redirects are followed.
+ * A task which is cancelled because of decrease of the requests count is continued from
+ * the last received byte if the server supports byte ranges.
+ * </p><p>
+ * Requires Java 11, is built with the {@code java11} Maven profile.
+ * </p>
+ */
+public class HttpClientDownloader implements Downloader {
+
+    private enum State {
+        NOT_STARTED, RUNNING, STOPPED
+    }
+
+    private final HttpClient.Version version;
+    private ExecutorService executor;
+    private HttpClient client;
+
+    private volatile State runningState = State.NOT_STARTED;
+    private final Object stateLock = new Object();
+
+    // parts of synchronized state
+    private final Deque<Transfer> queuedTransfers = new ArrayDeque<>();
+    private final List<Transfer> activeTransfers = new ArrayList<>();
+    private int pendingCancels = 0;
+    private int maxRequests;
+
+    private volatile ProgressTable progress = new ProgressTable(0);
+
+    private final Event changedEvent = new Event();
+
+    public HttpClientDownloader() {
+        this(HttpClient.Version.HTTP_2);
+    }
+
+    /**
+     * @param version preferred HTTP version, {@link HttpClient.Version#HTTP_1_1} disables HTTP/2
+     */
+    public HttpClientDownloader(HttpClient.Version version) {
+        this.version = version;
+    }
+
+    @Override
+    public void run(Collection<? extends DownloadingTask> tasks, int nThreads) throws InterruptedException {
+        synchronized (stateLock) {
+            if (runningState != State.NOT_STARTED)
+                throw new IllegalStateException("Can only be ran once");
+            runningState = State.RUNNING;
+
+            executor = Executors.newCachedThreadPool();
+            client = HttpClient.newBuilder()
+                    .version(version)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .executor(executor)
+                    .build();
+        }
+
+        ProgressTable progress = new ProgressTable(tasks.size());
+        synchronized (this) {
+            maxRequests = nThreads;
+            int nTransfers = 0;
+            for (DownloadingTask task : tasks)
+                queuedTransfers.add(new Transfer(task, progress.get(nTransfers++)));
+        }
+        this.progress = progress;
+
+        while (runningState != State.STOPPED && update()) {
+            changedEvent.waitFor();
+        }
+
+        synchronized (stateLock) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public Progress getProgress() {
+        return progress.getProgress();
+    }
+
+    @Override
+    public synchronized void setThreadsCount(int nThreads) {
+        if (nThreads < 1)
+            throw new IllegalArgumentException("nThreads < 1");
+
+        this.maxRequests = nThreads;
+        changedEvent.fire();
+    }
+
+    @Override
+    public void close() {
+        synchronized (stateLock) {
+            if (runningState == State.RUNNING) {
+                List<Transfer> transfers;
+                synchronized (this) {
+                    transfers = new ArrayList<>(activeTransfers);
+                }
+                for (Transfer transfer : transfers)
+                    transfer.discard();
+                executor.shutdownNow();
+            }
+            runningState = State.STOPPED;
+        }
+        changedEvent.fire();
+    }
+
+    private synchronized boolean update() {
+        if (queuedTransfers.isEmpty() && activeTransfers.isEmpty() && pendingCancels == 0)
+            return false;
+
+        // transfers are started and cancelled outside of the lock, their callbacks acquire it
+        while (activeTransfers.size() > maxRequests) {
+            // the most recent one has the least progress
+            Transfer transfer = activeTransfers.remove(activeTransfers.size() - 1);
+            pendingCancels++;
+            executor.execute(transfer::cancel);
+        }
+
+        while (activeTransfers.size() < maxRequests && !queuedTransfers.isEmpty()) {
+            Transfer transfer = queuedTransfers.remove();
+            activeTransfers.add(transfer);
+            executor.execute(transfer::start);
+        }
+
+        return true;
+    }
+
+    private synchronized void onTransferFinished(Transfer transfer) {
+        activeTransfers.remove(transfer);
+        changedEvent.fire();
+    }
+
+    /**
+     * @param resume whether the transfer should be continued later
+     */
+    private synchronized void onTransferCancelled(Transfer transfer, boolean resume) {
+        pendingCancels--;
+        if (resume)
+            queuedTransfers.add(transfer);
+        changedEvent.fire();
+    }
+
+    private static IOException unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null)
+            error = error.getCause();
+        return error instanceof IOException ? (IOException) error : new IOException(error);
+    }
+
+    /**
+     * Downloading of a task. Task callbacks are called with the transfer lock held, so they never overlap.
+     */
+    private class Transfer {
+        private final DownloadingTask task;
+        private final ProgressData progressData;
+
+        // guarded by this
+        private boolean started = false;
+        private boolean rangesSupported = false;
+        private Optional<String> validator = Optional.empty();
+        private long position = 0;
+        private Attempt attempt;
+
+        Transfer(DownloadingTask task, ProgressData progressData) {
+            this.task = task;
+            this.progressData = progressData;
+        }
+
+        public synchronized void start() {
+            HttpRequest.Builder request;
+            try {
+                request = HttpRequest.newBuilder(task.getURL().toURI()).GET();
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                task.onFailure(new IOException(String.format("Can't download %s", task.getURL()), e));
+                onTransferFinished(this);
+                return;
+            }
+            if (position > 0) {
+                request.header("Range", "bytes=" + position + "-");
+                validator.ifPresent(v -> request.header("If-Range", v));
+            }
+
+            Attempt current = new Attempt();
+            attempt = current;
+            client.sendAsync(request.build(), info -> onResponse(current, info))
+                    .whenComplete((response, error) -> onCompleted(current, error));
+        }
+
+        /**
+         * Stops the transfer because of decrease of the requests count.
+         */
+        public synchronized void cancel() {
+            if (attempt == null) {
+                // already finished
+                onTransferCancelled(this, false);
+                return;
+            }
+
+            attempt.stop(new IOException("Cancelled"));
+            attempt = null;
+            if (!rangesSupported && position > 0) {
+                position = 0;
+                progressData.resetDownloadedBytes();
+                try {
+                    task.onCancel();
+                } catch (IOException e) {
+                    task.onFailure(e);
+                    onTransferCancelled(this, false);
+                    return;
+                }
+            }
+            onTransferCancelled(this, true);
+        }
+
+        /**
+         * Stops the transfer because the downloader is closed.
+         */
+        public synchronized void discard() {
+            if (attempt == null)
+                return;
+
+            attempt.stop(new IOException("Discarded"));
+            attempt = null;
+            try {
+                task.onDiscard();
+            } catch (IOException e) {
+                task.onFailure(e);
+            }
+        }
+
+        private synchronized HttpResponse.BodySubscriber<Void> onResponse(Attempt current, HttpResponse.ResponseInfo info) {
+            if (current != attempt)
+                return current;
+
+            try {
+                onHeaders(info.statusCode(), info.headers());
+            } catch (IOException e) {
+                current.stop(e);
+            }
+            return current;
+        }
+
+        private void onHeaders(int statusCode, HttpHeaders headers) throws IOException {
+            if (statusCode / 100 != 2)
+                throw new HttpStatusException(String.format("Can't download %s (HTTP response code %d)", task.getURL(), statusCode),
+                        statusCode, RetryPolicy.parseRetryAfter(headers.firstValue("Retry-After").orElse(null)));
+
+            long length = -1;
+            if (statusCode == 206) {
+                length = HttpResponseParser.parseContentRangeTotal(headers.firstValue("Content-Range").orElse(null));
+            } else {
+                if (position > 0) {
+                    // the server sent the whole content
+                    position = 0;
+                    progressData.resetDownloadedBytes();
+                    task.onCancel();
+                }
+                length = headers.firstValueAsLong("Content-Length").orElse(-1);
+            }
+            rangesSupported = statusCode == 206 || headers.firstValue("Accept-Ranges").filter("bytes"::equalsIgnoreCase).isPresent();
+
+            if (length >= 0)
+                progressData.setTotalBytes(length);
+            if (!started) {
+                started = true;
+                Optional<String> eTag = headers.firstValue("ETag").filter(t -> !t.startsWith("W/"));
+                validator = eTag.isPresent() ? eTag : headers.firstValue("Last-Modified");
+                task.onStart(length >= 0 ? Optional.of(length) : Optional.empty());
+            }
+        }
+
+        private synchronized void onBody(Attempt current, List<ByteBuffer> data) throws IOException {
+            if (current != attempt)
+                return;
+
+            for (ByteBuffer buffer : data) {
+                int length = buffer.remaining();
+                position += length;
+                progressData.addDownloadedBytes(length);
+                task.onChunkReceived(buffer.asReadOnlyBuffer());
+            }
+        }
+
+        private synchronized void onCompleted(Attempt current, Throwable error) {
+            if (current != attempt)
+                return;
+
+            attempt = null;
+            if (error == null) {
+                try {
+                    task.onSuccess();
+                } catch (IOException e) {
+                    task.onFailure(e);
+                }
+            } else {
+                task.onFailure(unwrap(error));
+            }
+            onTransferFinished(this);
+        }
+
+        /**
+         * Single request of the transfer, receives its body.
+         */
+        private class Attempt implements HttpResponse.BodySubscriber<Void> {
+            private final CompletableFuture<Void> result = new CompletableFuture<>();
+            private Flow.Subscription subscription;
+            private boolean stopped = false;
+
+            /**
+             * Aborts the request, {@code cause} is the result of the request.
+             */
+            void stop(IOException cause) {
+                Flow.Subscription current;
+                synchronized (this) {
+                    stopped = true;
+                    current = subscription;
+                }
+                if (current != null)
+                    current.cancel();
+                // completion runs the transfer callbacks, which acquire the transfer lock
+                result.completeExceptionally(cause);
+            }
+
+            @Override
+            public CompletionStage<Void> getBody() {
+                return result;
+            }
+
+            @Override
+            public synchronized void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                if (stopped)
+                    subscription.cancel();
+                else
+                    subscription.request(1);
+            }
+
+            @Override
+            public void onNext(List<ByteBuffer> item) {
+                try {
+                    onBody(this, item);
+                } catch (IOException e) {
+                    stop(e);
+                    return;
+                }
+                request();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                result.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                result.complete(null);
+            }
+
+            private synchronized void request() {
+                if (!stopped)
+                    subscription.request(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package jb.test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**<p>
+ * {@link DownloaderImpl} running every request in its own virtual thread, so a large threads count
+ * (e.g. {@code setThreadsCount(10_000)}) costs neither platform threads nor their stacks.
+ * The threads count only limits the number of simultaneous requests.
+ * </p><p>
+ * Requires Java 21, is built with the {@code java21} Maven profile.
+ * </p>
+ */
+public class VirtualThreadDownloader extends DownloaderImpl {
+
+    @Override
+    protected ExecutorService createExecutor(int nThreads) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("downloader-", 0).factory());
+    }
+}
@@ -0,0 +1,48 @@
+package jb.test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    @org.junit.Test
+    public void testAcquire() throws Exception {
+        BufferPool pool = new BufferPool();
+        assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).length);
+        assertEquals(BufferPool.MIN_SIZE, pool.acquire(BufferPool.MIN_SIZE).length);
+        assertEquals(2 * BufferPool.MIN_SIZE, pool.acquire(BufferPool.MIN_SIZE + 1).length);
+        assertEquals(BufferPool.MAX_SIZE, pool.acquire(BufferPool.MAX_SIZE).length);
+        assertEquals(BufferPool.MAX_SIZE, pool.acquire(10 * BufferPool.MAX_SIZE).length);
+    }
+
+    @org.junit.Test
+    public void testRelease() throws Exception {
+        BufferPool pool = new BufferPool();
+        byte[] small = pool.acquire(BufferPool.MIN_SIZE);
+        byte[] large = pool.acquire(BufferPool.MAX_SIZE);
+        pool.release(small);
+        pool.release(large);
+
+        assertSame(large, pool.acquire(BufferPool.MAX_SIZE));
+        assertSame(small, pool.acquire(BufferPool.MIN_SIZE));
+        assertNotSame(small, pool.acquire(BufferPool.MIN_SIZE));
+    }
+
+    @org.junit.Test
+    public void testRetainedMemoryLimit() throws Exception {
+        BufferPool pool = new BufferPool();
+        byte[][] buffers = new byte[100][];
+        for (int i = 0; i < buffers.length; ++i)
+            buffers[i] = pool.acquire(BufferPool.MAX_SIZE);
+        for (byte[] buffer : buffers)
+            pool.release(buffer);
+
+        int reused = 0;
+        for (int i = 0; i < buffers.length; ++i) {
+            byte[] buffer = pool.acquire(BufferPool.MAX_SIZE);
+            for (byte[] released : buffers) {
+                if (released == buffer)
+                    reused++;
+            }
+        }
+        assertTrue(reused > 0 && reused < buffers.length);
+    }
+}
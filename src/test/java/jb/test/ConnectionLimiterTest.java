@@ -0,0 +1,62 @@
+package jb.test;
+
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+public class ConnectionLimiterTest {
+
+    @org.junit.Test
+    public void testOrigin() throws Exception {
+        assertEquals("http://example.com:80", ConnectionLimiter.getOrigin(new URL("http://Example.COM/a")));
+        assertEquals(ConnectionLimiter.getOrigin(new URL("https://example.com/a")),
+                ConnectionLimiter.getOrigin(new URL("https://example.com:443/b?c")));
+        assertNotEquals(ConnectionLimiter.getOrigin(new URL("http://example.com/")),
+                ConnectionLimiter.getOrigin(new URL("https://example.com/")));
+    }
+
+    @org.junit.Test
+    public void testLimits() throws Exception {
+        URL a = new URL("http://a.com/1");
+        URL a2 = new URL("http://a.com/2");
+        URL b = new URL("http://b.com/1");
+        URL c = new URL("http://c.com/1");
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setLimits(2, 3);
+
+        assertTrue(limiter.tryAcquire(a));
+        assertTrue(limiter.tryAcquire(a2));
+        assertFalse(limiter.tryAcquire(a));
+        assertTrue(limiter.tryAcquire(b));
+        // total limit
+        assertFalse(limiter.isAvailable(c));
+
+        limiter.release(a);
+        assertTrue(limiter.tryAcquire(c));
+        assertFalse(limiter.tryAcquire(a));
+        limiter.release(b);
+        assertTrue(limiter.tryAcquire(a));
+    }
+
+    @org.junit.Test(timeout = 10000)
+    public void testAcquireWaits() throws Exception {
+        URL url = new URL("http://a.com/");
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setLimits(1, 1);
+        limiter.acquire(url);
+
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.acquire(url);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        assertTrue(waiter.isAlive());
+        limiter.release(url);
+        waiter.join();
+        assertFalse(limiter.isAvailable(url));
+    }
+}
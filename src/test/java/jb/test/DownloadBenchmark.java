@@ -0,0 +1,79 @@
+package jb.test;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Measures throughput of downloading from the local {@link TestServer}, so the results are limited
+ * by the downloader itself rather than by the network.
+ * <p>
+ * Usage: {@code DownloadBenchmark [<content MB> [<tasks> [<threads> [<runs>]]]]}
+ */
+public class DownloadBenchmark {
+    /**
+     * Task which drops all received data.
+     */
+    static class DiscardingTask implements DownloadingTask {
+        private final URL url;
+
+        DiscardingTask(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public URL getURL() {
+            return url;
+        }
+
+        @Override
+        public void onStart(Optional<Long> contentLength) {
+        }
+
+        @Override
+        public void onChunkReceived(ByteBuffer chunk) {
+        }
+
+        @Override
+        public void onSuccess() {
+        }
+
+        @Override
+        public void onCancel() {
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+            throw new AssertionError(cause);
+        }
+
+        @Override
+        public void onDiscard() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int contentMB = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int nTasks = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int nThreads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int nRuns = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        try (TestServer server = new TestServer()) {
+            URL url = server.addContent("/benchmark.bin", TestServer.randomContent(contentMB * 1024 * 1024));
+            for (int run = 0; run < nRuns; ++run) {
+                List<DownloadingTask> tasks = new ArrayList<>();
+                for (int i = 0; i < nTasks; ++i)
+                    tasks.add(new DiscardingTask(url));
+
+                long startTime = System.nanoTime();
+                try (DownloaderImpl downloader = new DownloaderImpl()) {
+                    downloader.run(tasks, nThreads);
+                }
+                double seconds = (System.nanoTime() - startTime) / 1e9;
+                System.out.format("run %d: %.1f MB/s%n", run, (double) contentMB * nTasks / seconds);
+            }
+        }
+    }
+}
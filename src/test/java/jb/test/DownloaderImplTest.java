@@ -1,9 +1,15 @@
 package jb.test;
 
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -11,6 +17,8 @@ import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
@@ -41,6 +49,7 @@ public class DownloaderImplTest {
     private SuccessCounter counter;
     ExecutorService service;
     Downloader downloader;
+    TestServer server;
 
 
     class TestTask implements DownloadingTask {
@@ -112,6 +121,73 @@ public class DownloaderImplTest {
         }
     }
 
+    /**
+     * Collects downloaded content in memory.
+     */
+    static class BufferTask implements DownloadingTask {
+        private final URL url;
+        private final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        private final AtomicInteger cancelCount = new AtomicInteger(0);
+        private volatile Throwable failure = null;
+        private volatile boolean succeeded = false;
+
+        BufferTask(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public URL getURL() {
+            return url;
+        }
+
+        @Override
+        public void onStart(Optional<Long> contentLength) {
+        }
+
+        @Override
+        public void onChunkReceived(ByteBuffer chunk) {
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            result.write(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void onSuccess() {
+            succeeded = true;
+        }
+
+        @Override
+        public void onCancel() {
+            cancelCount.incrementAndGet();
+            result.reset();
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+            failure = cause;
+        }
+
+        @Override
+        public void onDiscard() {
+        }
+
+        public byte[] getResult() {
+            return result.toByteArray();
+        }
+
+        public int getCancelCount() {
+            return cancelCount.get();
+        }
+
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean isSucceeded() {
+            return succeeded;
+        }
+    }
+
     private Collection<TestTask> createTasks(Collection<URL> urls) {
         return urls.stream().map(TestTask::new).collect(Collectors.toList());
     }
@@ -121,12 +197,17 @@ public class DownloaderImplTest {
         counter = new SuccessCounter();
         service = Executors.newSingleThreadExecutor();
         downloader = new DownloaderImpl();
-
+        try {
+            server = new TestServer();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @org.junit.After
     public void tearDown() {
         downloader.close();
+        server.close();
     }
 
     @org.junit.Test
@@ -277,4 +358,700 @@ public class DownloaderImplTest {
         sem2.release();
         assertTrue(discarded.get());
     }
-}
\ No newline at end of file
+
+    @org.junit.Test
+    public void testSegmented() throws Exception {
+        byte[] content = TestServer.randomContent(5 * 1024 * 1024);
+        URL url = server.addContent("/segmented.bin", content);
+        Path path = Paths.get("out/segmented.bin");
+        try {
+            downloader.run(Collections.singletonList(new RandomAccessFileDownloadingTask(url, path)), 4);
+            assertEquals(4, server.getRangeCount());
+            assertArrayEquals(content, Files.readAllBytes(path));
+            assertEquals(content.length, downloader.getProgress().getDownloaded());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testSegmentedMapped() throws Exception {
+        byte[] content = TestServer.randomContent(5 * 1024 * 1024);
+        URL url = server.addContent("/segmented.bin", content);
+        Path path = Paths.get("out/segmented.bin");
+        try {
+            downloader.run(Collections.singletonList(new MappedFileDownloadingTask(url, path)), 4);
+            assertEquals(4, server.getRangeCount());
+            assertArrayEquals(content, Files.readAllBytes(path));
+            assertEquals(content.length, downloader.getProgress().getDownloaded());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testSegmentedWriteBehind() throws Exception {
+        byte[] content = TestServer.randomContent(5 * 1024 * 1024);
+        URL url = server.addContent("/segmented.bin", content);
+        Path path = Paths.get("out/segmented.bin");
+        try (WriteBehindStage writeBehind = new WriteBehindStage(2, 256 * 1024)) {
+            RandomAccessFileDownloadingTask task = new RandomAccessFileDownloadingTask(url, path);
+            task.setWriteBehind(writeBehind);
+            downloader.run(Collections.singletonList(task), 4);
+            assertEquals(4, server.getRangeCount());
+            assertArrayEquals(content, Files.readAllBytes(path));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testSegmentedRangesUnsupported() throws Exception {
+        server.setRangesSupported(false);
+        byte[] content = TestServer.randomContent(5 * 1024 * 1024);
+        URL url = server.addContent("/segmented.bin", content);
+        Path path = Paths.get("out/segmented.bin");
+        try {
+            downloader.run(Collections.singletonList(new RandomAccessFileDownloadingTask(url, path)), 4);
+            assertEquals(0, server.getRangeCount());
+            assertArrayEquals(content, Files.readAllBytes(path));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testWorkStealing() throws Exception {
+        server.setChunkDelay(5);
+        byte[] content = TestServer.randomContent(8 * 1024 * 1024);
+        URL url = server.addContent("/stolen.bin", content);
+        Path path = Paths.get("out/stolen.bin");
+        try {
+            Future<?> f = service.submit(() -> {
+                try {
+                    downloader.run(Collections.singletonList(new RandomAccessFileDownloadingTask(url, path)), 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Thread.sleep(500);
+            downloader.setThreadsCount(3);
+            f.get();
+            assertTrue(server.getRangeCount() >= 3);
+            assertArrayEquals(content, Files.readAllBytes(path));
+            assertEquals(content.length, downloader.getProgress().getDownloaded());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testResumeAfterCancel() throws Exception {
+        server.setChunkDelay(5);
+        byte[] content = TestServer.randomContent(1024 * 1024);
+        List<BufferTask> tasks = Arrays.asList(
+                new BufferTask(server.addContent("/1.bin", content)),
+                new BufferTask(server.addContent("/2.bin", content)));
+        Future<?> f = service.submit(() -> {
+            try {
+                downloader.run(tasks, 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread.sleep(300);
+        downloader.setThreadsCount(1);
+        f.get();
+
+        assertEquals(1, server.getRangeCount());
+        for (BufferTask task : tasks) {
+            assertTrue(task.isSucceeded());
+            assertEquals(0, task.getCancelCount());
+            assertArrayEquals(content, task.getResult());
+        }
+    }
+
+    @org.junit.Test
+    public void testResumeFromJournal() throws Exception {
+        byte[] content = TestServer.randomContent(3 * 1024 * 1024);
+        URL url = server.addContent("/resumed.bin", content);
+        Path path = Paths.get("out/resumed.bin");
+        Path journalPath = ResumeJournal.getJournalPath(path);
+        try {
+            // state left by a crashed run
+            byte[] partial = new byte[content.length];
+            System.arraycopy(content, 0, partial, 0, 1024 * 1024);
+            Files.write(path, partial);
+            ResumeJournal journal = new ResumeJournal(journalPath, content.length, TestServer.getETag(content));
+            journal.add(0, 1024 * 1024);
+            journal.save();
+
+            RandomAccessFileDownloadingTask task = new RandomAccessFileDownloadingTask(url, path);
+            task.setResumable(true);
+            downloader.run(Collections.singletonList(task), 1);
+
+            assertEquals(2 * 1024 * 1024, server.getSentBytes());
+            assertArrayEquals(content, Files.readAllBytes(path));
+            assertEquals(content.length, downloader.getProgress().getDownloaded());
+            assertTrue(Files.notExists(journalPath));
+        } finally {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(journalPath);
+        }
+    }
+
+    @org.junit.Test
+    public void testResumeAfterFailedProbe() throws Exception {
+        byte[] content = TestServer.randomContent(3 * 1024 * 1024);
+        URL url = server.addContent("/resumed.bin", content);
+        Path path = Paths.get("out/resumed.bin");
+        Path journalPath = ResumeJournal.getJournalPath(path);
+        try {
+            server.disconnectNextRequestAfter(1024 * 1024);
+            RandomAccessFileDownloadingTask partial = new RandomAccessFileDownloadingTask(url, path);
+            partial.setResumable(true);
+            downloader.run(Collections.singletonList(partial), 1);
+            long completed = ResumeJournal.load(journalPath).get().getCompletedLength();
+            assertTrue(completed > 0);
+
+            // the probe of the next run fails before the file is opened
+            server.failNextHeadRequests(1, 500, null);
+            RandomAccessFileDownloadingTask failed = new RandomAccessFileDownloadingTask(url, path);
+            failed.setResumable(true);
+            try (Downloader next = new DownloaderImpl()) {
+                next.run(Collections.singletonList(failed), 1);
+            }
+            assertEquals(content.length, Files.size(path));
+            assertEquals(completed, ResumeJournal.load(journalPath).get().getCompletedLength());
+
+            long sentBytes = server.getSentBytes();
+            RandomAccessFileDownloadingTask resumed = new RandomAccessFileDownloadingTask(url, path);
+            resumed.setResumable(true);
+            try (Downloader next = new DownloaderImpl()) {
+                next.run(Collections.singletonList(resumed), 1);
+            }
+
+            assertEquals(content.length - completed, server.getSentBytes() - sentBytes);
+            assertArrayEquals(content, Files.readAllBytes(path));
+            assertTrue(Files.notExists(journalPath));
+        } finally {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(journalPath);
+        }
+    }
+
+    @org.junit.Test
+    public void testRetryResume() throws Exception {
+        byte[] content = TestServer.randomContent(2 * 1024 * 1024);
+        BufferTask task = new BufferTask(server.addContent("/retried.bin", content));
+        server.disconnectNextRequestAfter(512 * 1024);
+        ((DownloaderImpl) downloader).setRetryPolicy(new RetryPolicy(3, 10, 100));
+        downloader.run(Collections.singletonList(task), 1);
+
+        assertTrue(task.isSucceeded());
+        assertEquals(0, task.getCancelCount());
+        assertEquals(1, server.getRangeCount());
+        assertArrayEquals(content, task.getResult());
+    }
+
+    @org.junit.Test
+    public void testRetryAfter() throws Exception {
+        byte[] content = TestServer.randomContent(1024);
+        BufferTask task = new BufferTask(server.addContent("/retried.bin", content));
+        server.failNextRequests(1, 503, "1");
+        ((DownloaderImpl) downloader).setRetryPolicy(new RetryPolicy(2, 10, 100));
+        long startTime = System.nanoTime();
+        downloader.run(Collections.singletonList(task), 1);
+
+        assertTrue(System.nanoTime() - startTime >= 1_000_000_000L);
+        assertTrue(task.isSucceeded());
+        assertArrayEquals(content, task.getResult());
+    }
+
+    @org.junit.Test
+    public void testRetryExhausted() throws Exception {
+        BufferTask task = new BufferTask(server.addContent("/retried.bin", TestServer.randomContent(1024)));
+        server.failNextRequests(3, 503, null);
+        ((DownloaderImpl) downloader).setRetryPolicy(new RetryPolicy(3, 10, 100));
+        downloader.run(Collections.singletonList(task), 1);
+
+        assertFalse(task.isSucceeded());
+        assertEquals(503, ((HttpStatusException) task.getFailure()).getStatusCode());
+        assertEquals(3, server.getGetCount());
+    }
+
+    @org.junit.Test
+    public void testRetryProbe() throws Exception {
+        byte[] content = TestServer.randomContent(1024);
+        BufferTask task = new BufferTask(server.addContent("/retried.bin", content));
+        server.failNextHeadRequests(1, 429, "1");
+        ((DownloaderImpl) downloader).setRetryPolicy(new RetryPolicy(2, 10, 100));
+        long startTime = System.nanoTime();
+        downloader.run(Collections.singletonList(task), 1);
+
+        assertTrue(System.nanoTime() - startTime >= 1_000_000_000L);
+        assertTrue(task.isSucceeded());
+        assertEquals(2, server.getHeadCount());
+        assertArrayEquals(content, task.getResult());
+    }
+
+    @org.junit.Test(timeout = 20000)
+    public void testRetryOfFailedTask() throws Exception {
+        server.setChunkDelay(5);
+        byte[] content = TestServer.randomContent(4 * 1024 * 1024);
+        URL url = server.addContent("/retried.bin", content);
+        Path path = Paths.get("out/retried.bin");
+        AtomicLong received = new AtomicLong(0);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        // the segment which isn't waiting for its retry breaks the task
+        RandomAccessFileDownloadingTask task = new RandomAccessFileDownloadingTask(url, path) {
+            @Override
+            public void onChunkReceived(long offset, ByteBuffer chunk) throws IOException {
+                if (received.addAndGet(chunk.remaining()) > 256 * 1024)
+                    throw new IOException("Disk is full");
+                super.onChunkReceived(offset, chunk);
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                failure.set(cause);
+                super.onFailure(cause);
+            }
+        };
+        server.failNextRequests(1, 503, "1");
+        ((DownloaderImpl) downloader).setRetryPolicy(new RetryPolicy(3, 1000, 1000));
+        try {
+            downloader.run(Collections.singletonList(task), 2);
+
+            assertEquals("Disk is full", failure.get().getMessage());
+            assertTrue(Files.notExists(path));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test(timeout = 30000)
+    public void testHedgedRequest() throws Exception {
+        byte[] content = TestServer.randomContent(2 * 1024 * 1024);
+        URL url = server.addContent("/hedged.bin", content);
+        Path path = Paths.get("out/hedged.bin");
+        try {
+            server.stallNextRequestAfter(256 * 1024);
+            ((DownloaderImpl) downloader).setMinThroughput(64 * 1024);
+            ((DownloaderImpl) downloader).setTimeouts(0, 3000);
+            downloader.run(Collections.singletonList(new RandomAccessFileDownloadingTask(url, path)), 2);
+
+            assertEquals(3, server.getRangeCount());
+            assertArrayEquals(content, Files.readAllBytes(path));
+            assertEquals(content.length, downloader.getProgress().getDownloaded());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test(timeout = 30000)
+    public void testStalledRequest() throws Exception {
+        byte[] content = TestServer.randomContent(1024 * 1024);
+        BufferTask task = new BufferTask(server.addContent("/stalled.bin", content));
+        server.stallNextRequestAfter(256 * 1024);
+        ((DownloaderImpl) downloader).setMinThroughput(64 * 1024);
+        ((DownloaderImpl) downloader).setTimeouts(0, 3000);
+        downloader.run(Collections.singletonList(task), 1);
+
+        assertTrue(task.isSucceeded());
+        assertEquals(0, task.getCancelCount());
+        assertEquals(1, server.getRangeCount());
+        assertArrayEquals(content, task.getResult());
+    }
+
+    @org.junit.Test(timeout = 30000)
+    public void testReadTimeout() throws Exception {
+        byte[] content = TestServer.randomContent(1024 * 1024);
+        BufferTask task = new BufferTask(server.addContent("/stalled.bin", content));
+        server.setRangesSupported(false);
+        server.stallNextRequestAfter(256 * 1024);
+        ((DownloaderImpl) downloader).setTimeouts(1000, 500);
+        ((DownloaderImpl) downloader).setRetryPolicy(new RetryPolicy(2, 10, 100));
+        downloader.run(Collections.singletonList(task), 1);
+
+        assertTrue(task.isSucceeded());
+        assertEquals(1, task.getCancelCount());
+        assertEquals(2, server.getGetCount());
+        assertArrayEquals(content, task.getResult());
+    }
+
+    @org.junit.Test
+    public void testMirrors() throws Exception {
+        server.setChunkDelay(5);
+        byte[] content = TestServer.randomContent(4 * 1024 * 1024);
+        URL url = server.addContent("/primary.bin", content);
+        URL mirror = server.addContent("/mirror.bin", content);
+        Path path = Paths.get("out/mirrored.bin");
+        try {
+            RandomAccessFileDownloadingTask task = new RandomAccessFileDownloadingTask(url, path);
+            task.setMirrors(Collections.singletonList(mirror));
+            downloader.run(Collections.singletonList(task), 4);
+
+            assertTrue(server.getGetCount("/primary.bin") > 0);
+            assertTrue(server.getGetCount("/mirror.bin") > 0);
+            assertArrayEquals(content, Files.readAllBytes(path));
+            assertEquals(content.length, downloader.getProgress().getDownloaded());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testBrokenMirrors() throws Exception {
+        byte[] content = TestServer.randomContent(2 * 1024 * 1024);
+        URL missing = server.getURL("/missing.bin");
+        URL mirror = server.addContent("/mirror.bin", content);
+        URL different = server.addContent("/different.bin", TestServer.randomContent(3 * 1024 * 1024));
+        Path path = Paths.get("out/mirrored.bin");
+        try {
+            RandomAccessFileDownloadingTask task = new RandomAccessFileDownloadingTask(missing, path);
+            task.setMirrors(Arrays.asList(mirror, different));
+            downloader.run(Collections.singletonList(task), 2);
+
+            assertEquals(0, server.getGetCount("/missing.bin"));
+            assertEquals(1, server.getGetCount("/different.bin"));
+            assertArrayEquals(content, Files.readAllBytes(path));
+            assertEquals(content.length, downloader.getProgress().getDownloaded());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test(timeout = 20000)
+    public void testFailureWithMirrors() throws Exception {
+        server.setChunkDelay(5);
+        byte[] content = TestServer.randomContent(8 * 1024 * 1024);
+        URL url = server.addContent("/primary.bin", content);
+        List<URL> mirrors = Arrays.asList(server.addContent("/mirror1.bin", content), server.addContent("/mirror2.bin", content));
+        Path path = Paths.get("out/mirrored.bin");
+        AtomicLong received = new AtomicLong(0);
+        AtomicInteger failures = new AtomicInteger(0);
+        RandomAccessFileDownloadingTask task = new RandomAccessFileDownloadingTask(url, path) {
+            @Override
+            public void onChunkReceived(long offset, ByteBuffer chunk) throws IOException {
+                if (received.addAndGet(chunk.remaining()) > 1024 * 1024)
+                    throw new IOException("Disk is full");
+                super.onChunkReceived(offset, chunk);
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                failures.incrementAndGet();
+                super.onFailure(cause);
+            }
+        };
+        task.setMirrors(mirrors);
+        try {
+            downloader.run(Collections.singletonList(task), 8);
+
+            assertEquals(1, failures.get());
+            // the requests stopped by the failure aren't repeated by other mirrors
+            assertEquals(8, server.getGetCount());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testTaskFootprint() throws Exception {
+        URL url = server.addContent("/small.bin", TestServer.randomContent(100));
+        List<DownloadingTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 1000000; ++i)
+            tasks.add(new DownloadBenchmark.DiscardingTask(url));
+        long baseline = getUsedHeap();
+
+        Future<?> run = service.submit(() -> {
+            downloader.run(tasks, 4);
+            return null;
+        });
+        while (downloader.getProgress().getDownloaded() < 100 * 100)
+            Thread.sleep(10);
+        long used = getUsedHeap() - baseline;
+        downloader.close();
+        run.get();
+
+        // a task which isn't downloaded takes a few primitive fields only
+        assertTrue("Heap per task: " + used / tasks.size(), used / tasks.size() < 100);
+        // the tasks which weren't started have unknown totals
+        assertFalse(downloader.getProgress().getTotal().isPresent());
+        assertEquals(Optional.empty(), ((DownloaderImpl) downloader).getProgress(tasks.get(tasks.size() - 1)).getTotal());
+    }
+
+    private static long getUsedHeap() {
+        for (int i = 0; i < 3; ++i)
+            System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @org.junit.Test
+    public void testStreamedTasks() throws Exception {
+        URL url = server.addContent("/small.bin", TestServer.randomContent(100));
+        int nTasks = 300;
+        ((DownloaderImpl) downloader).setMaxStreamedTasks(16);
+        AtomicInteger taken = new AtomicInteger(0);
+        AtomicInteger finished = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        Iterator<DownloadingTask> tasks = new Iterator<DownloadingTask>() {
+            @Override
+            public boolean hasNext() {
+                return taken.get() < nTasks;
+            }
+
+            @Override
+            public DownloadingTask next() {
+                maxRunning.accumulateAndGet(taken.incrementAndGet() - finished.get(), Math::max);
+                return new DownloadBenchmark.DiscardingTask(url) {
+                    @Override
+                    public void onSuccess() {
+                        assertEquals(100, ((DownloaderImpl) downloader).getProgress(this).getDownloaded());
+                        finished.incrementAndGet();
+                    }
+                };
+            }
+        };
+
+        downloader.run(tasks, 4);
+        assertEquals(nTasks, finished.get());
+        // rows of the finished tasks are reused, a few more tasks are read ahead
+        assertTrue(maxRunning.get() <= 16 + DownloaderImpl.LOOKUP_WINDOW);
+        assertEquals(100L * nTasks, downloader.getProgress().getDownloaded());
+        assertEquals(Optional.of(100L * nTasks), downloader.getProgress().getTotal());
+    }
+
+    @org.junit.Test
+    public void testStreamedTasksFailure() throws Exception {
+        URL url = server.addContent("/small.bin", TestServer.randomContent(100));
+        AtomicInteger finished = new AtomicInteger(0);
+        Iterator<DownloadingTask> tasks = new Iterator<DownloadingTask>() {
+            private int taken = 0;
+
+            @Override
+            public boolean hasNext() {
+                if (taken == 3)
+                    throw new IllegalStateException("Broken list");
+                return true;
+            }
+
+            @Override
+            public DownloadingTask next() {
+                taken++;
+                return new DownloadBenchmark.DiscardingTask(url) {
+                    @Override
+                    public void onSuccess() {
+                        finished.incrementAndGet();
+                    }
+                };
+            }
+        };
+
+        try {
+            downloader.run(tasks, 2);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Broken list", e.getMessage());
+        }
+        // the tasks taken before are downloaded anyway
+        assertEquals(3, finished.get());
+    }
+
+    @org.junit.Test
+    public void testConcurrentProbes() throws Exception {
+        server.setHeadDelay(500);
+        byte[] content = TestServer.randomContent(1024);
+        List<BufferTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 8; ++i)
+            tasks.add(new BufferTask(server.addContent("/" + i + ".bin", content)));
+        ((DownloaderImpl) downloader).setProbeConcurrency(8);
+        long startTime = System.nanoTime();
+        downloader.run(tasks, 2);
+
+        // probes one by one would take 4 seconds
+        assertTrue(System.nanoTime() - startTime < 2_000_000_000L);
+        for (BufferTask task : tasks) {
+            assertTrue(task.isSucceeded());
+            assertArrayEquals(content, task.getResult());
+        }
+        assertEquals(Optional.of(8L * content.length), downloader.getProgress().getTotal());
+    }
+
+    @org.junit.Test
+    public void testProbeDisabled() throws Exception {
+        server.setChunkDelay(5);
+        byte[] content = TestServer.randomContent(4 * 1024 * 1024);
+        URL url = server.addContent("/unprobed.bin", content);
+        Path path = Paths.get("out/unprobed.bin");
+        BufferTask missing = new BufferTask(server.getURL("/missing.bin"));
+        try {
+            ((DownloaderImpl) downloader).setProbeEnabled(false);
+            downloader.run(Arrays.asList(new RandomAccessFileDownloadingTask(url, path), missing), 4);
+
+            assertEquals(0, server.getHeadCount());
+            // the task is split after the first response
+            assertTrue(server.getRangeCount() > 0);
+            assertArrayEquals(content, Files.readAllBytes(path));
+            assertEquals(content.length, downloader.getProgress().getDownloaded());
+
+            assertFalse(missing.isSucceeded());
+            assertEquals(404, ((HttpStatusException) missing.getFailure()).getStatusCode());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testConnectionLimits() throws Exception {
+        server.setChunkDelay(5);
+        byte[] content = TestServer.randomContent(256 * 1024);
+        try (TestServer other = new TestServer()) {
+            List<BufferTask> tasks = new ArrayList<>();
+            for (int i = 0; i < 6; ++i) {
+                tasks.add(new BufferTask(server.addContent("/" + i + ".bin", content)));
+                tasks.add(new BufferTask(other.addContent("/" + i + ".bin", content)));
+            }
+            ((DownloaderImpl) downloader).setConnectionLimits(2, 3);
+            downloader.run(tasks, 8);
+
+            for (BufferTask task : tasks) {
+                assertTrue(task.isSucceeded());
+                assertArrayEquals(content, task.getResult());
+            }
+            assertTrue(server.getMaxActiveRequests() <= 2);
+            assertTrue(other.getMaxActiveRequests() <= 2);
+            assertTrue(server.getMaxActiveRequests() + other.getMaxActiveRequests() >= 3);
+        }
+    }
+
+    @org.junit.Test
+    public void testConnectionReuse() throws Exception {
+        byte[] content = TestServer.randomContent(4 * 1024);
+        List<BufferTask> tasks = new ArrayList<>();
+        // the connection stays usable after an error response
+        tasks.add(new BufferTask(server.getURL("/missing.bin")));
+        for (int i = 0; i < 20; ++i)
+            tasks.add(new BufferTask(server.addContent("/" + i + ".bin", content)));
+        DownloaderImpl downloaderImpl = (DownloaderImpl) downloader;
+        // the test server closes connections after HEAD responses
+        downloaderImpl.setProbeEnabled(false);
+        downloaderImpl.setConnectionLimits(2, Integer.MAX_VALUE);
+        downloader.run(tasks, 2);
+
+        assertTrue(tasks.get(0).getFailure() instanceof HttpStatusException);
+        for (BufferTask task : tasks.subList(1, tasks.size()))
+            assertArrayEquals(content, task.getResult());
+        assertTrue("Connections: " + server.getConnectionCount(), server.getConnectionCount() <= 2);
+    }
+
+    @org.junit.Test
+    public void testHostsTakeTurns() throws Exception {
+        server.setChunkDelay(5);
+        byte[] content = TestServer.randomContent(128 * 1024);
+        List<String> finished = Collections.synchronizedList(new ArrayList<>());
+        try (TestServer other = new TestServer()) {
+            List<URL> urls = new ArrayList<>();
+            for (int i = 0; i < 20; ++i)
+                urls.add(server.addContent("/a" + i + ".bin", content));
+            for (int i = 0; i < 2; ++i)
+                urls.add(other.addContent("/b" + i + ".bin", content));
+            List<BufferTask> tasks = new ArrayList<>();
+            for (URL url : urls) {
+                tasks.add(new BufferTask(url) {
+                    @Override
+                    public void onSuccess() {
+                        super.onSuccess();
+                        finished.add(getURL().getPath());
+                    }
+                });
+            }
+            ((DownloaderImpl) downloader).setProbeEnabled(false);
+            downloader.run(tasks, 2);
+
+            assertEquals(urls.size(), finished.size());
+            // the tasks of the second host don't wait for the whole queue of the first one
+            assertTrue(finished.toString(), finished.indexOf("/b0.bin") < 8 && finished.indexOf("/b1.bin") < 8);
+            for (BufferTask task : tasks)
+                assertArrayEquals(content, task.getResult());
+        }
+    }
+
+    @org.junit.Test
+    public void testPrewarmedConnections() throws Exception {
+        server.setChunkDelay(5);
+        byte[] content = TestServer.randomContent(128 * 1024);
+        try (TestServer other = new TestServer()) {
+            List<BufferTask> tasks = new ArrayList<>();
+            for (int i = 0; i < 3; ++i) {
+                tasks.add(new BufferTask(server.addContent("/a" + i + ".bin", content)));
+                tasks.add(new BufferTask(other.addContent("/b" + i + ".bin", content)));
+            }
+            DownloaderImpl downloaderImpl = (DownloaderImpl) downloader;
+            downloaderImpl.setProbeEnabled(false);
+            downloaderImpl.setPrewarmedConnections(1);
+            downloader.run(tasks, 1);
+
+            for (BufferTask task : tasks)
+                assertArrayEquals(content, task.getResult());
+            // the hosts take turns, the next one is connected while the other one is downloaded
+            assertTrue(server.getHeadCount() > 0 && other.getHeadCount() > 0);
+            assertTrue(server.getHeadCount() <= 3 && other.getHeadCount() <= 3);
+        }
+    }
+
+    @org.junit.Test
+    public void testHttps() throws Exception {
+        byte[] content = TestServer.randomContent(64 * 1024);
+        // TLS 1.2 sessions keep their IDs when resumed
+        SSLContext clientContext = TestServer.createSSLContext("TLSv1.2");
+        try (TestServer httpsServer = new TestServer(TestServer.createSSLContext())) {
+            List<URL> urls = new ArrayList<>();
+            for (int i = 0; i < 10; ++i)
+                urls.add(httpsServer.addContent("/" + i + ".bin", content));
+            List<BufferTask> tasks = new ArrayList<>();
+            for (URL url : urls)
+                tasks.add(new BufferTask(url));
+            DownloaderImpl downloaderImpl = (DownloaderImpl) downloader;
+            downloaderImpl.setSSLContext(clientContext);
+            downloaderImpl.setConnectionLimits(2, Integer.MAX_VALUE);
+            downloader.run(tasks, 2);
+
+            int handshakeCount = 0;
+            for (BufferTask task : tasks) {
+                assertArrayEquals(content, task.getResult());
+                Progress taskProgress = downloaderImpl.getProgress(task);
+                assertEquals(content.length, taskProgress.getDownloaded());
+                handshakeCount += taskProgress.getHandshakeCount();
+            }
+            Progress progress = downloader.getProgress();
+            assertEquals(handshakeCount, progress.getHandshakeCount());
+            assertTrue(progress.getHandshakeCount() > 0 && progress.getHandshakeNanos() > 0);
+            // HEAD and GET requests of 10 tasks reuse connections
+            assertTrue(progress.getHandshakeCount() + " handshakes", progress.getHandshakeCount() < 20);
+
+            Set<ByteBuffer> sessionIds = getSessionIds(clientContext);
+            assertFalse(sessionIds.isEmpty());
+            // the connections of the next downloader resume the cached sessions instead of creating new ones
+            List<BufferTask> nextTasks = new ArrayList<>();
+            for (URL url : urls)
+                nextTasks.add(new BufferTask(url));
+            try (DownloaderImpl next = new DownloaderImpl()) {
+                next.setSSLContext(clientContext);
+                next.run(nextTasks, 2);
+                assertTrue(next.getProgress().getHandshakeCount() > 0);
+            }
+            for (BufferTask task : nextTasks)
+                assertArrayEquals(content, task.getResult());
+            assertEquals(sessionIds, getSessionIds(clientContext));
+        }
+    }
+
+    private static Set<ByteBuffer> getSessionIds(SSLContext context) {
+        Set<ByteBuffer> ids = new HashSet<>();
+        for (byte[] id : Collections.list(context.getClientSessionContext().getIds()))
+            ids.add(ByteBuffer.wrap(id));
+        return ids;
+    }
+}
@@ -0,0 +1,70 @@
+package jb.test;
+
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the throughput cost of every {@link Durability} mode of {@link RandomAccessFileDownloadingTask}
+ * on many small files and on a few large ones. The periodic mode syncs every 8 MB.
+ * <p>
+ * Usage: {@code DurabilityBenchmark [<threads> [<runs> [<directory>]]]}
+ */
+public class DurabilityBenchmark {
+    private static final long SYNC_INTERVAL = 8 * 1024 * 1024;
+
+    private static class Workload {
+        final String name;
+        final int nFiles;
+        final int fileKB;
+
+        Workload(String name, int nFiles, int fileKB) {
+            this.name = name;
+            this.nFiles = nFiles;
+            this.fileKB = fileKB;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int nThreads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int nRuns = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        Path directory = Paths.get(args.length > 2 ? args[2] : "out");
+
+        Workload[] workloads = {new Workload("small", 500, 64), new Workload("large", 4, 64 * 1024)};
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        Files.createDirectories(directory);
+        try (TestServer server = new TestServer()) {
+            for (int run = 0; run < nRuns; ++run) {
+                for (Workload workload : workloads) {
+                    URL url = server.addContent("/" + workload.name + ".bin", TestServer.randomContent(workload.fileKB * 1024));
+                    for (Durability durability : Durability.values()) {
+                        List<Path> paths = new ArrayList<>();
+                        List<DownloadingTask> tasks = new ArrayList<>();
+                        for (int i = 0; i < workload.nFiles; ++i) {
+                            Path path = directory.resolve("durability" + i + ".bin");
+                            paths.add(path);
+                            RandomAccessFileDownloadingTask task = new RandomAccessFileDownloadingTask(url, path);
+                            task.setDurability(durability);
+                            task.setSyncInterval(SYNC_INTERVAL);
+                            tasks.add(task);
+                        }
+
+                        long startTime = System.nanoTime();
+                        try (DownloaderImpl downloader = new DownloaderImpl()) {
+                            downloader.run(tasks, nThreads);
+                        }
+                        double seconds = (System.nanoTime() - startTime) / 1e9;
+                        System.out.format("run %d, %d x %d KB, %-13s: %.1f MB/s, %.0f files/s%n", run, workload.nFiles,
+                                workload.fileKB, durability, (double) workload.fileKB * workload.nFiles / 1024 / seconds,
+                                workload.nFiles / seconds);
+                        for (Path path : paths)
+                            Files.delete(path);
+                    }
+                }
+            }
+        }
+    }
+}
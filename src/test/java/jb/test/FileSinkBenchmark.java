@@ -0,0 +1,96 @@
+package jb.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares CPU time per GB written to files by {@link RandomAccessFileDownloadingTask}, which receives chunks,
+ * with {@link MappedFileDownloadingTask}. Only the CPU time of the threads running the requests is counted.
+ * <p>
+ * Usage: {@code FileSinkBenchmark [<content MB> [<tasks> [<threads> [<runs> [<directory>]]]]]}
+ */
+public class FileSinkBenchmark {
+    /**
+     * Downloader which adds up the CPU time of its request threads when they terminate.
+     */
+    private static class MeasuredDownloader extends DownloaderImpl {
+        private final LongAdder cpuTime = new LongAdder();
+
+        @Override
+        protected ExecutorService createExecutor(int nThreads) {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) super.createExecutor(nThreads);
+            executor.setThreadFactory(runnable -> new Thread(() -> {
+                try {
+                    runnable.run();
+                } finally {
+                    cpuTime.add(threads.getCurrentThreadCpuTime());
+                }
+            }));
+            return executor;
+        }
+
+        /**
+         * @return CPU time in nanoseconds, is complete after {@link #close()}
+         */
+        public long getCpuTime() {
+            return cpuTime.sum();
+        }
+    }
+
+    private enum Mode {
+        CHUNKS, MAPPED
+    }
+
+    public static void main(String[] args) throws Exception {
+        int contentMB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int nTasks = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int nThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int nRuns = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        Path directory = Paths.get(args.length > 4 ? args[4] : "out");
+
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        Files.createDirectories(directory);
+        try (TestServer server = new TestServer()) {
+            URL url = server.addContent("/benchmark.bin", TestServer.randomContent(contentMB * 1024 * 1024));
+            for (int run = 0; run < nRuns; ++run) {
+                for (Mode mode : Mode.values()) {
+                    List<Path> paths = new ArrayList<>();
+                    List<DownloadingTask> tasks = new ArrayList<>();
+                    for (int i = 0; i < nTasks; ++i) {
+                        Path path = directory.resolve("sink" + i + ".bin");
+                        paths.add(path);
+                        if (mode == Mode.CHUNKS)
+                            tasks.add(new RandomAccessFileDownloadingTask(url, path));
+                        else
+                            tasks.add(new MappedFileDownloadingTask(url, path));
+                    }
+
+                    long startTime = System.nanoTime();
+                    MeasuredDownloader downloader = new MeasuredDownloader();
+                    try {
+                        downloader.run(tasks, nThreads);
+                    } finally {
+                        downloader.close();
+                    }
+                    double seconds = (System.nanoTime() - startTime) / 1e9;
+                    double cpuSeconds = downloader.getCpuTime() / 1e9;
+                    double gigabytes = (double) contentMB * nTasks / 1024;
+                    System.out.format("run %d, %-13s: %.1f MB/s, CPU %.2f s/GB%n", run, mode, contentMB * nTasks / seconds,
+                            cpuSeconds / gigabytes);
+                    for (Path path : paths)
+                        Files.delete(path);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package jb.test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HostResolverTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    @org.junit.After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private InetAddress[] lookup(String host) throws UnknownHostException {
+        lookups.incrementAndGet();
+        if (host.endsWith(".invalid"))
+            throw new UnknownHostException(host);
+        return new InetAddress[]{InetAddress.getByAddress(host, new byte[]{127, 0, 0, 1})};
+    }
+
+    @org.junit.Test
+    public void testPrefetch() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HostResolver resolver = new HostResolver(executor, host -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return lookup(host);
+        }, -1, -1);
+        resolver.prefetch(Arrays.asList("a.com", "b.com", "a.com"));
+        release.countDown();
+
+        // waits for the running lookup
+        assertEquals("a.com", resolver.resolve("a.com")[0].getHostName());
+        resolver.resolve("b.com");
+        resolver.resolve("a.com");
+        assertEquals(2, lookups.get());
+    }
+
+    @org.junit.Test
+    public void testExpiry() throws Exception {
+        HostResolver resolver = new HostResolver(executor, this::lookup, 0, -1);
+        resolver.resolve("a.com");
+        resolver.resolve("a.com");
+        assertEquals(2, lookups.get());
+
+        for (int i = 0; i < 2; ++i) {
+            try {
+                resolver.resolve("missing.invalid");
+                fail();
+            } catch (UnknownHostException e) {
+                assertEquals("missing.invalid", e.getMessage());
+            }
+        }
+        // failures are cached forever
+        assertEquals(3, lookups.get());
+    }
+
+    @org.junit.Test
+    public void testResolveAsync() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HostResolver resolver = new HostResolver(executor, host -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return lookup(host);
+        }, -1, -1);
+        CompletableFuture<InetAddress[]> first = resolver.resolveAsync("a.com");
+        CompletableFuture<InetAddress[]> second = resolver.resolveAsync("a.com");
+        CompletableFuture<InetAddress[]> missing = resolver.resolveAsync("missing.invalid");
+        assertFalse(first.isDone());
+        release.countDown();
+
+        assertEquals("a.com", first.get()[0].getHostName());
+        assertEquals("a.com", second.get()[0].getHostName());
+        try {
+            missing.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UnknownHostException);
+        }
+        assertEquals(2, lookups.get());
+    }
+
+    @org.junit.Test
+    public void testEviction() throws Exception {
+        HostResolver resolver = new HostResolver(executor, this::lookup, 0, 0);
+        for (int i = 0; i < 10000; ++i)
+            resolver.resolve("host" + i + ".com");
+        assertEquals(10000, lookups.get());
+        assertTrue(resolver.size() <= 256);
+    }
+}
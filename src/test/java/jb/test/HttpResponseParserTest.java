@@ -0,0 +1,116 @@
+package jb.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HttpResponseParserTest {
+
+    private static class Collector implements HttpResponseParser.Listener {
+        int statusCode = -1;
+        Map<String, String> headers;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        @Override
+        public void onHeaders(int statusCode, Map<String, String> headers) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+        }
+
+        @Override
+        public void onBody(ByteBuffer data) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            body.write(bytes, 0, bytes.length);
+        }
+
+        String getBody() {
+            return new String(body.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Feeds the response byte by byte.
+     *
+     * @return {@code true} if the parser reported completion
+     */
+    private static boolean feedByByte(HttpResponseParser parser, String response) throws IOException {
+        ByteBuffer data = bytes(response);
+        while (data.hasRemaining()) {
+            ByteBuffer part = data.slice();
+            part.limit(1);
+            data.get();
+            if (parser.feed(part))
+                return true;
+        }
+        return false;
+    }
+
+    @org.junit.Test
+    public void testContentLength() throws Exception {
+        Collector collector = new Collector();
+        HttpResponseParser parser = new HttpResponseParser(collector);
+        ByteBuffer data = bytes("HTTP/1.1 200 OK\r\nContent-Length: 5\r\naccept-ranges: bytes\r\n\r\nhelloEXTRA");
+        assertTrue(parser.feed(data));
+        assertEquals(200, collector.statusCode);
+        assertEquals("bytes", collector.headers.get("Accept-Ranges"));
+        assertEquals("hello", collector.getBody());
+        assertEquals(5, data.remaining());
+    }
+
+    @org.junit.Test
+    public void testChunkedByByte() throws Exception {
+        Collector collector = new Collector();
+        HttpResponseParser parser = new HttpResponseParser(collector);
+        assertTrue(feedByByte(parser, "HTTP/1.1 206 Partial Content\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "5;ext=1\r\nhello\r\n1\r\n \r\nA\r\n0123456789\r\n0\r\nTrailer: x\r\n\r\n"));
+        assertEquals(206, collector.statusCode);
+        assertEquals("hello 0123456789", collector.getBody());
+    }
+
+    @org.junit.Test
+    public void testUntilClose() throws Exception {
+        Collector collector = new Collector();
+        HttpResponseParser parser = new HttpResponseParser(collector);
+        assertFalse(feedByByte(parser, "HTTP/1.0 200 OK\n\nbody"));
+        assertTrue(parser.onEndOfStream());
+        assertEquals("body", collector.getBody());
+    }
+
+    @org.junit.Test
+    public void testTruncated() throws Exception {
+        HttpResponseParser parser = new HttpResponseParser(new Collector());
+        assertFalse(parser.feed(bytes("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello")));
+        assertFalse(parser.onEndOfStream());
+    }
+
+    @org.junit.Test
+    public void testInterimResponse() throws Exception {
+        Collector collector = new Collector();
+        HttpResponseParser parser = new HttpResponseParser(collector);
+        assertTrue(parser.feed(bytes("HTTP/1.1 100 Continue\r\nX-Interim: 1\r\n\r\n" +
+                "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n")));
+        assertEquals(404, collector.statusCode);
+        assertNull(collector.headers.get("X-Interim"));
+    }
+
+    @org.junit.Test(expected = IOException.class)
+    public void testMalformedStatusLine() throws Exception {
+        new HttpResponseParser(new Collector()).feed(bytes("SSH-2.0-OpenSSH\r\n"));
+    }
+
+    @org.junit.Test
+    public void testParseContentRangeTotal() {
+        assertEquals(1000, HttpResponseParser.parseContentRangeTotal("bytes 0-99/1000"));
+        assertEquals(-1, HttpResponseParser.parseContentRangeTotal("bytes 0-99/*"));
+        assertEquals(-1, HttpResponseParser.parseContentRangeTotal(null));
+    }
+}
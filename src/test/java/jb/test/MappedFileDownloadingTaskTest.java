@@ -0,0 +1,81 @@
+package jb.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class MappedFileDownloadingTaskTest {
+    private Path path;
+    private MappedFileDownloadingTask task;
+
+    @Before
+    public void setUp() throws Exception {
+        path = Paths.get("out/mappedfile");
+        // small windows, so chunks cross their bounds
+        task = new MappedFileDownloadingTask(new URL("http://google.com/"), path, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        task.close();
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        byte[] content = TestServer.randomContent(10);
+        task.onStart(Optional.of(10L));
+        assertEquals(10, Files.size(path));
+        task.onChunkReceived(6, ByteBuffer.wrap(content, 6, 4).slice().asReadOnlyBuffer());
+        task.onChunkReceived(0, ByteBuffer.wrap(content, 0, 6).slice().asReadOnlyBuffer());
+        assertEquals(10, task.getWrittenLength());
+        task.onSuccess();
+
+        assertArrayEquals(content, Files.readAllBytes(path));
+    }
+
+    @Test
+    public void testLongerContent() throws Exception {
+        byte[] content = TestServer.randomContent(12);
+        task.onStart(Optional.of(5L));
+        task.onChunkReceived(ByteBuffer.wrap(content, 0, 3));
+        // crosses the end of the mapping
+        task.onChunkReceived(ByteBuffer.wrap(content, 3, 9));
+        task.onSuccess();
+
+        assertArrayEquals(content, Files.readAllBytes(path));
+    }
+
+    @Test
+    public void testUnknownLength() throws Exception {
+        byte[] content = TestServer.randomContent(7);
+        task.onStart(Optional.empty());
+        task.onChunkReceived(ByteBuffer.wrap(content, 0, 4));
+        task.onCancel();
+        task.onChunkReceived(ByteBuffer.wrap(content));
+        task.onSuccess();
+
+        assertArrayEquals(content, Files.readAllBytes(path));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        byte[] content = TestServer.randomContent(8);
+        task.onStart(Optional.of(8L));
+        task.onChunkReceived(ByteBuffer.wrap(new byte[5]));
+        task.onCancel();
+        task.onChunkReceived(ByteBuffer.wrap(content));
+        task.onSuccess();
+
+        assertArrayEquals(content, Files.readAllBytes(path));
+    }
+}
@@ -0,0 +1,120 @@
+package jb.test;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class ProgressTableTest {
+    private ProgressTable totals;
+
+    @Before
+    public void setUp() throws Exception {
+        totals = new ProgressTable(4);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        Progress progress = new ProgressTable(0).getProgress();
+        assertEquals(0, progress.getDownloaded());
+        assertEquals(Optional.of(0L), progress.getTotal());
+        assertFalse(totals.getProgress().getTotal().isPresent());
+    }
+
+    @Test
+    public void testTotalKnownForAllTasks() throws Exception {
+        totals = new ProgressTable(2);
+        ProgressData first = totals.get(0);
+        ProgressData second = totals.get(1);
+        first.setTotalBytes(10);
+        assertFalse(totals.getProgress().getTotal().isPresent());
+
+        second.setTotalBytes(20);
+        assertEquals(Optional.of(30L), totals.getProgress().getTotal());
+
+        // the total of an unfinished content is corrected when it ends
+        second.setTotalBytes(15);
+        assertEquals(Optional.of(25L), totals.getProgress().getTotal());
+    }
+
+    @Test
+    public void testDownloadedBytes() throws Exception {
+        ProgressData first = totals.get(0);
+        ProgressData second = totals.get(1);
+        first.addDownloadedBytes(5);
+        second.addDownloadedBytes(7);
+        assertEquals(12, totals.getProgress().getDownloaded());
+
+        first.resetDownloadedBytes();
+        assertEquals(7, totals.getProgress().getDownloaded());
+        assertEquals(7, second.getDownloadedBytes());
+    }
+
+    @Test
+    public void testHandshakes() throws Exception {
+        ProgressData first = totals.get(0);
+        ProgressData second = totals.get(1);
+        first.addHandshake(100);
+        second.addHandshake(50);
+        assertEquals(2, totals.getProgress().getHandshakeCount());
+        assertEquals(150, totals.getProgress().getHandshakeNanos());
+        assertEquals(1, totals.getProgress(1).getHandshakeCount());
+        assertEquals(50, totals.getProgress(1).getHandshakeNanos());
+    }
+
+    @Test
+    public void testTaskProgress() throws Exception {
+        ProgressData data = totals.get(2);
+        data.setTotalBytes(10);
+        data.addDownloadedBytes(4);
+        assertEquals(4, totals.getProgress(2).getDownloaded());
+        assertEquals(Optional.of(10L), totals.getProgress(2).getTotal());
+        assertEquals(0, totals.getProgress(3).getDownloaded());
+        assertFalse(totals.getProgress(3).getTotal().isPresent());
+        // views of the same row share it
+        assertEquals(4, totals.get(2).getDownloadedBytes());
+    }
+
+    @Test
+    public void testRecycling() throws Exception {
+        ProgressTable table = ProgressTable.createRecycling(2);
+        int first = table.acquire();
+        int second = table.acquire();
+        assertFalse(table.hasFreeRow());
+        table.get(first).setTotalBytes(10);
+        table.get(first).addDownloadedBytes(10);
+        table.get(second).addDownloadedBytes(3);
+
+        // a finished task of unknown length counts as its downloaded bytes
+        table.release(second);
+        table.release(first);
+        assertTrue(table.hasFreeRow());
+        assertFalse(table.getProgress().getTotal().isPresent());
+
+        int third = table.acquire();
+        assertEquals(0, table.getProgress(third).getDownloaded());
+        table.get(third).setTotalBytes(5);
+        table.get(third).addDownloadedBytes(5);
+        table.onSourceEnded();
+        assertEquals(18, table.getProgress().getDownloaded());
+        assertEquals(Optional.of(18L), table.getProgress().getTotal());
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            ProgressData data = totals.get(i);
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100000; ++j)
+                    data.addDownloadedBytes(1);
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(400000, totals.getProgress().getDownloaded());
+    }
+}
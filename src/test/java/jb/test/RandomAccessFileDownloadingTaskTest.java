@@ -13,7 +13,12 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.HashSet;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -73,6 +78,100 @@ public class RandomAccessFileDownloadingTaskTest {
             assertEquals(res[i], i);
     }
 
+    @Test
+    public void testFileGrowth() throws Exception {
+        task.onStart(Optional.empty());
+        Set<Long> fileLengths = new HashSet<>();
+        for (int i = 0; i < 100; ++i) {
+            task.onChunkReceived(ByteBuffer.allocate(64 * 1024));
+            assertEquals(task.getFileLength(), Files.size(path));
+            fileLengths.add(task.getFileLength());
+        }
+        // doubles from 64 KB up to 8 MB
+        assertEquals(8, fileLengths.size());
+        task.onChunkReceived(ByteBuffer.allocate(10));
+        task.onSuccess();
+        assertEquals(100 * 64 * 1024 + 10, Files.size(path));
+    }
+
+    @Test
+    public void testAtomicRename() throws Exception {
+        task.setDurability(Durability.ATOMIC_RENAME);
+        Path partPath = Paths.get("out/testfile.part");
+        try {
+            task.onStart(Optional.of(3L));
+            task.onChunkReceived(ByteBuffer.wrap(new byte[]{0, 1, 2}));
+            assertTrue(Files.exists(partPath));
+            assertTrue(Files.notExists(path));
+
+            task.onSuccess();
+            assertTrue(Files.notExists(partPath));
+            assertArrayEquals(new byte[]{0, 1, 2}, Files.readAllBytes(path));
+        } finally {
+            Files.deleteIfExists(partPath);
+        }
+    }
+
+    @Test
+    public void testAtomicRenameDiscard() throws Exception {
+        task.setDurability(Durability.ATOMIC_RENAME);
+        Files.write(path, new byte[]{5});
+        task.onStart(Optional.of(3L));
+        task.onChunkReceived(ByteBuffer.wrap(new byte[]{0, 1, 2}));
+        task.onDiscard();
+        assertTrue(Files.notExists(Paths.get("out/testfile.part")));
+        // the previous file is intact
+        assertArrayEquals(new byte[]{5}, Files.readAllBytes(path));
+    }
+
+    @Test
+    public void testPeriodicSync() throws Exception {
+        AtomicInteger syncs = new AtomicInteger();
+        task = new RandomAccessFileDownloadingTask(url, path) {
+            @Override
+            protected void force() throws IOException {
+                syncs.incrementAndGet();
+                super.force();
+            }
+        };
+        task.setDurability(Durability.PERIODIC);
+        task.setSyncInterval(100);
+        task.onStart(Optional.of(500L));
+        for (int i = 0; i < 10; ++i)
+            task.onChunkReceived(i * 50, ByteBuffer.allocate(50));
+        assertEquals(5, syncs.get());
+        task.onSuccess();
+        assertEquals(6, syncs.get());
+    }
+
+    @Test
+    public void testPeriodicSyncWriteBehind() throws Exception {
+        AtomicInteger syncs = new AtomicInteger();
+        Queue<Runnable> drains = new ArrayDeque<>();
+        task = new RandomAccessFileDownloadingTask(url, path) {
+            @Override
+            protected void force() throws IOException {
+                syncs.incrementAndGet();
+                super.force();
+            }
+        };
+        task.setWriteBehind(new WriteBehindStage(drains::add, Long.MAX_VALUE));
+        task.setDurability(Durability.PERIODIC);
+        task.setSyncInterval(100);
+        task.onStart(Optional.of(500L));
+        for (int i = 0; i < 10; ++i)
+            task.onChunkReceived(i * 50, ByteBuffer.allocate(50));
+        // the I/O thread syncs after the drain, the receiving thread neither waits nor syncs
+        assertEquals(0, syncs.get());
+        assertEquals(1, drains.size());
+
+        while (!drains.isEmpty())
+            drains.remove().run();
+        task.onSuccess();
+        assertEquals(1, syncs.get());
+        assertEquals(500, Files.size(path));
+    }
+
     @Test
     public void testOnFailure() throws Exception {
         task.onFailure(new IOException());
@@ -0,0 +1,76 @@
+package jb.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class ResumeJournalTest {
+    private Path path;
+    private ResumeJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        path = ResumeJournal.getJournalPath(Paths.get("out/testfile"));
+        journal = new ResumeJournal(path, 100, "\"etag\"");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void testAdd() throws Exception {
+        journal.add(10, 10);
+        journal.add(40, 10);
+        assertEquals(Arrays.asList(new ByteRange(10, 20), new ByteRange(40, 50)), journal.getCompletedRanges());
+
+        journal.add(20, 5);
+        journal.add(0, 0);
+        assertEquals(Arrays.asList(new ByteRange(10, 25), new ByteRange(40, 50)), journal.getCompletedRanges());
+
+        journal.add(5, 40);
+        assertEquals(Arrays.asList(new ByteRange(5, 50)), journal.getCompletedRanges());
+        assertEquals(45, journal.getCompletedLength());
+    }
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        journal.add(0, 30);
+        journal.add(60, 40);
+        journal.save();
+
+        Optional<ResumeJournal> loaded = ResumeJournal.load(path);
+        assertTrue(loaded.isPresent());
+        assertEquals(100, loaded.get().getContentLength());
+        assertEquals("\"etag\"", loaded.get().getValidator());
+        assertEquals(journal.getCompletedRanges(), loaded.get().getCompletedRanges());
+
+        journal.delete();
+        assertFalse(ResumeJournal.load(path).isPresent());
+    }
+
+    @Test
+    public void testSaveBeforeSync() throws Exception {
+        journal.add(0, 30);
+        // the range written while the data is being synced isn't durable yet
+        journal.save(() -> journal.add(30, 10));
+
+        assertEquals(Arrays.asList(new ByteRange(0, 30)), ResumeJournal.load(path).get().getCompletedRanges());
+        assertEquals(Arrays.asList(new ByteRange(0, 40)), journal.getCompletedRanges());
+    }
+
+    @Test
+    public void testLoadCorrupted() throws Exception {
+        Files.write(path, new byte[]{1, 2, 3});
+        assertFalse(ResumeJournal.load(path).isPresent());
+    }
+}
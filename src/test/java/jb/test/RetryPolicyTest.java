@@ -0,0 +1,52 @@
+package jb.test;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+    private final RetryPolicy policy = new RetryPolicy(4, 100, 1000);
+
+    @Test
+    public void testShouldRetry() throws Exception {
+        assertTrue(policy.shouldRetry(1, new IOException()));
+        assertTrue(policy.shouldRetry(3, new IOException()));
+        assertFalse(policy.shouldRetry(4, new IOException()));
+
+        assertTrue(policy.shouldRetry(1, new HttpStatusException("", 503, Optional.empty())));
+        assertFalse(policy.shouldRetry(1, new HttpStatusException("", 404, Optional.empty())));
+        assertFalse(RetryPolicy.NONE.shouldRetry(1, new IOException()));
+    }
+
+    @Test
+    public void testGetDelay() throws Exception {
+        for (int i = 0; i < 100; ++i) {
+            long first = policy.getDelay(1, new IOException());
+            assertTrue(first >= 50 && first <= 100);
+            long third = policy.getDelay(3, new IOException());
+            assertTrue(third >= 200 && third <= 400);
+            long last = policy.getDelay(100, new IOException());
+            assertTrue(last >= 500 && last <= 1000);
+        }
+        assertEquals(5000, policy.getDelay(1, new HttpStatusException("", 503, Optional.of(5000L))));
+    }
+
+    @Test
+    public void testParseRetryAfter() throws Exception {
+        assertEquals(Optional.of(120000L), RetryPolicy.parseRetryAfter("120"));
+        assertFalse(RetryPolicy.parseRetryAfter(null).isPresent());
+        assertFalse(RetryPolicy.parseRetryAfter("soon").isPresent());
+        assertEquals(Optional.of(RetryPolicy.MAX_RETRY_AFTER), RetryPolicy.parseRetryAfter("9223372036854775807"));
+
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now().plusMinutes(1));
+        long delay = RetryPolicy.parseRetryAfter(date).get();
+        assertTrue(delay > 50000 && delay <= 60000);
+        String farDate = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now().plusYears(1));
+        assertEquals(Optional.of(RetryPolicy.MAX_RETRY_AFTER), RetryPolicy.parseRetryAfter(farDate));
+    }
+}
@@ -0,0 +1,72 @@
+package jb.test;
+
+import jb.test.DownloaderImplTest.BufferTask;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentQueueTest {
+
+    private static Segment segment(String url) throws Exception {
+        return new TaskState(new BufferTask(new URL(url)), new ProgressData()).createSegment(0, -1);
+    }
+
+    private static String host(Segment segment) {
+        return segment.getState().getTask().getURL().getHost();
+    }
+
+    @org.junit.Test
+    public void testRoundRobin() throws Exception {
+        SegmentQueue queue = new SegmentQueue();
+        for (int i = 0; i < 3; ++i)
+            queue.add(segment("http://a.com/" + i));
+        queue.add(segment("http://b.com/0"));
+        queue.add(segment("https://a.com/0"));
+        assertEquals(5, queue.size());
+
+        List<String> order = new ArrayList<>();
+        queue.serve(segment -> order.add(host(segment) + segment.getState().getTask().getURL().getProtocol()));
+        assertEquals("[a.comhttp, b.comhttp, a.comhttps, a.comhttp, a.comhttp]", order.toString());
+        assertTrue(queue.isEmpty());
+    }
+
+    @org.junit.Test
+    public void testDeclinedOrigin() throws Exception {
+        SegmentQueue queue = new SegmentQueue();
+        queue.add(segment("http://a.com/0"));
+        queue.add(segment("http://a.com/1"));
+        queue.add(segment("http://b.com/0"));
+        queue.add(segment("http://b.com/1"));
+
+        // a.com has no free connections
+        List<String> taken = new ArrayList<>();
+        queue.serve(segment -> !host(segment).equals("a.com") && taken.add(segment.getState().getTask().getURL().getPath()));
+        assertEquals("[/0, /1]", taken.toString());
+        assertEquals(2, queue.size());
+
+        // a.com keeps its turn
+        taken.clear();
+        queue.serve(segment -> taken.isEmpty() && taken.add(host(segment)));
+        assertEquals("[a.com]", taken.toString());
+        assertEquals(1, queue.size());
+    }
+
+    @org.junit.Test
+    public void testPeek() throws Exception {
+        SegmentQueue queue = new SegmentQueue();
+        queue.add(segment("http://a.com/0"));
+        queue.add(segment("http://a.com/1"));
+        queue.add(segment("http://a.com/2"));
+        queue.add(segment("http://b.com/0"));
+
+        List<String> peeked = new ArrayList<>();
+        for (Segment segment : queue.peek(3))
+            peeked.add(host(segment) + segment.getState().getTask().getURL().getPath());
+        assertEquals("[a.com/0, b.com/0, a.com/1]", peeked.toString());
+        assertEquals(4, queue.peek(10).size());
+        assertEquals(4, queue.size());
+    }
+}
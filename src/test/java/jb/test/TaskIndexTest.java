@@ -0,0 +1,34 @@
+package jb.test;
+
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+public class TaskIndexTest {
+    @Test
+    public void testIndexOf() throws Exception {
+        URL url = new URL("http://localhost/");
+        DownloadingTask[] tasks = new DownloadingTask[1000];
+        for (int i = 0; i < tasks.length; ++i)
+            tasks[i] = new DownloadBenchmark.DiscardingTask(url);
+        TaskIndex index = new TaskIndex(tasks);
+        for (int i = 0; i < tasks.length; ++i)
+            assertEquals(i, index.indexOf(tasks[i]));
+        assertEquals(-1, index.indexOf(new DownloadBenchmark.DiscardingTask(url)));
+    }
+
+    @Test
+    public void testDuplicates() throws Exception {
+        DownloadingTask task = new DownloadBenchmark.DiscardingTask(new URL("http://localhost/"));
+        TaskIndex index = new TaskIndex(new DownloadingTask[]{task, task});
+        assertEquals(0, index.indexOf(task));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        TaskIndex index = new TaskIndex(new DownloadingTask[0]);
+        assertEquals(-1, index.indexOf(new DownloadBenchmark.DiscardingTask(new URL("http://localhost/"))));
+    }
+}
@@ -0,0 +1,365 @@
+package jb.test;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP server serving in-memory content, supports HEAD and single byte range requests.
+ */
+class TestServer implements Closeable {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final long STALL_TIME = 60 * 1000;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+    private final AtomicInteger getCount = new AtomicInteger(0);
+    private final AtomicInteger headCount = new AtomicInteger(0);
+    private final Map<String, AtomicInteger> pathGetCounts = new ConcurrentHashMap<>();
+    private final Set<InetSocketAddress> clients = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger activeRequests = new AtomicInteger(0);
+    private final AtomicInteger maxActiveRequests = new AtomicInteger(0);
+    private final AtomicInteger rangeCount = new AtomicInteger(0);
+    private final AtomicLong sentBytes = new AtomicLong(0);
+    private volatile boolean rangesSupported = true;
+    private volatile long chunkDelay = 0;
+    private volatile long headDelay = 0;
+    private volatile boolean chunkedEncoding = false;
+    private final Map<String, String> redirects = new ConcurrentHashMap<>();
+    private final AtomicInteger failures = new AtomicInteger(0);
+    private final AtomicInteger headFailures = new AtomicInteger(0);
+    private volatile int failureCode;
+    private volatile String retryAfter;
+    private final AtomicLong disconnectAfter = new AtomicLong(-1);
+    private final AtomicLong stallAfter = new AtomicLong(-1);
+
+    TestServer() throws IOException {
+        this(null);
+    }
+
+    /**
+     * @param sslContext context of an HTTPS server, {@code null} for an HTTP one
+     */
+    TestServer(SSLContext sslContext) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        if (sslContext != null) {
+            HttpsServer httpsServer = HttpsServer.create(address, 0);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+            server = httpsServer;
+        } else {
+            server = HttpServer.create(address, 0);
+        }
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return context with the self-signed certificate of 127.0.0.1 and localhost, which both
+     * the HTTPS test server and its clients can use
+     */
+    public static SSLContext createSSLContext() throws Exception {
+        return createSSLContext("TLS");
+    }
+
+    /**
+     * @param protocol protocol of {@link SSLContext#getInstance(String)}, e.g. {@code TLSv1.2} limits clients to it
+     */
+    public static SSLContext createSSLContext(String protocol) throws Exception {
+        char[] password = "changeit".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = TestServer.class.getResourceAsStream("/test-keystore.p12")) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+
+        SSLContext context = SSLContext.getInstance(protocol);
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    public static byte[] randomContent(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    public URL addContent(String path, byte[] content) throws IOException {
+        contents.put(path, content);
+        return getURL(path);
+    }
+
+    public URL getURL(String path) throws IOException {
+        String protocol = server instanceof HttpsServer ? "https" : "http";
+        return new URL(protocol, server.getAddress().getHostString(), server.getAddress().getPort(), path);
+    }
+
+    /**
+     * Makes the server answer GET requests for {@code path} with a redirect to {@code target}.
+     */
+    public URL addRedirect(String path, String target) throws IOException {
+        redirects.put(path, target);
+        return getURL(path);
+    }
+
+    /**
+     * Makes the server send response bodies with chunked transfer encoding instead of Content-Length.
+     */
+    public void setChunkedEncoding(boolean chunkedEncoding) {
+        this.chunkedEncoding = chunkedEncoding;
+    }
+
+    public void setRangesSupported(boolean rangesSupported) {
+        this.rangesSupported = rangesSupported;
+    }
+
+    /**
+     * Sets delay before sending every {@value #CHUNK_SIZE} bytes of the response body.
+     */
+    public void setChunkDelay(long millis) {
+        this.chunkDelay = millis;
+    }
+
+    /**
+     * Sets delay before responding to every HEAD request.
+     */
+    public void setHeadDelay(long millis) {
+        this.headDelay = millis;
+    }
+
+    /**
+     * Makes the next {@code count} GET requests fail with {@code statusCode}.
+     *
+     * @param retryAfter Retry-After header value, {@code null} if not needed
+     */
+    public void failNextRequests(int count, int statusCode, String retryAfter) {
+        this.failureCode = statusCode;
+        this.retryAfter = retryAfter;
+        failures.set(count);
+    }
+
+    /**
+     * Makes the next {@code count} HEAD requests fail with {@code statusCode}.
+     *
+     * @param retryAfter Retry-After header value, {@code null} if not needed
+     */
+    public void failNextHeadRequests(int count, int statusCode, String retryAfter) {
+        this.failureCode = statusCode;
+        this.retryAfter = retryAfter;
+        headFailures.set(count);
+    }
+
+    /**
+     * Makes the next GET request drop the connection after sending {@code bytes} of the body.
+     */
+    public void disconnectNextRequestAfter(long bytes) {
+        disconnectAfter.set(bytes);
+    }
+
+    /**
+     * Makes the next GET request stop sending data for a long time after sending {@code bytes} of the body.
+     */
+    public void stallNextRequestAfter(long bytes) {
+        stallAfter.set(bytes);
+    }
+
+    public int getGetCount() {
+        return getCount.get();
+    }
+
+    public int getHeadCount() {
+        return headCount.get();
+    }
+
+    public int getGetCount(String path) {
+        AtomicInteger count = pathGetCounts.get(path);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @return number of distinct client connections which sent requests
+     */
+    public int getConnectionCount() {
+        return clients.size();
+    }
+
+    /**
+     * @return maximal number of requests which were served simultaneously
+     */
+    public int getMaxActiveRequests() {
+        return maxActiveRequests.get();
+    }
+
+    public int getRangeCount() {
+        return rangeCount.get();
+    }
+
+    /**
+     * @return total length of all sent response bodies
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * @return ETag the server sends for the content
+     */
+    public static String getETag(byte[] content) {
+        return String.format("\"%08x\"", Arrays.hashCode(content));
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    protected void handle(HttpExchange exchange) throws IOException {
+        // the client can send the next request as soon as it receives the last bytes
+        AtomicBoolean active = new AtomicBoolean(true);
+        Runnable leave = () -> {
+            if (active.getAndSet(false))
+                activeRequests.decrementAndGet();
+        };
+        maxActiveRequests.accumulateAndGet(activeRequests.incrementAndGet(), Math::max);
+        try {
+            clients.add(exchange.getRemoteAddress());
+            String path = exchange.getRequestURI().getPath();
+            boolean head = "HEAD".equals(exchange.getRequestMethod());
+            if (head)
+                headCount.incrementAndGet();
+            else
+                pathGetCounts.computeIfAbsent(path, p -> new AtomicInteger(0)).incrementAndGet();
+
+            String redirect = redirects.get(path);
+            if (redirect != null) {
+                exchange.getResponseHeaders().set("Location", redirect);
+                leave.run();
+                exchange.sendResponseHeaders(302, -1);
+                return;
+            }
+
+            byte[] content = contents.get(path);
+            if (content == null) {
+                // the client should read the body to reuse the connection
+                byte[] body = "Not found".getBytes(StandardCharsets.US_ASCII);
+                exchange.sendResponseHeaders(404, body.length);
+                leave.run();
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+                return;
+            }
+
+            if (!head)
+                getCount.incrementAndGet();
+
+            Headers headers = exchange.getResponseHeaders();
+            if ((head ? headFailures : failures).getAndDecrement() > 0) {
+                if (retryAfter != null)
+                    headers.set("Retry-After", retryAfter);
+                leave.run();
+                exchange.sendResponseHeaders(failureCode, -1);
+                return;
+            }
+            long disconnect = head ? -1 : disconnectAfter.getAndSet(-1);
+            long stall = head ? -1 : stallAfter.getAndSet(-1);
+
+            int code = 200;
+            int start = 0;
+            int end = content.length;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            headers.set("ETag", getETag(content));
+            if (rangesSupported) {
+                headers.set("Accept-Ranges", "bytes");
+                if (range != null && range.startsWith("bytes=")) {
+                    String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                    start = Integer.parseInt(bounds[0]);
+                    if (!bounds[1].isEmpty())
+                        end = Math.min(end, Integer.parseInt(bounds[1]) + 1);
+                    code = 206;
+                    headers.set("Content-Range", String.format("bytes %d-%d/%d", start, end - 1, content.length));
+                    if (!head)
+                        rangeCount.incrementAndGet();
+                }
+            }
+            if (!chunkedEncoding)
+                headers.set("Content-Length", Integer.toString(end - start));
+
+            if (head) {
+                if (headDelay > 0)
+                    sleep(headDelay);
+                leave.run();
+                exchange.sendResponseHeaders(code, -1);
+                return;
+            }
+
+            exchange.sendResponseHeaders(code, chunkedEncoding ? 0 : end - start);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int pos = start; pos < end; pos += CHUNK_SIZE) {
+                    if (disconnect >= 0 && pos - start >= disconnect)
+                        throw new IOException("Disconnected on purpose");
+                    if (stall >= 0 && pos - start >= stall) {
+                        stall = -1;
+                        sleep(STALL_TIME);
+                    }
+                    if (pos + CHUNK_SIZE >= end)
+                        leave.run();
+                    writeChunk(exchange, out, content, pos, Math.min(CHUNK_SIZE, end - pos));
+                }
+            }
+        } finally {
+            leave.run();
+            exchange.close();
+        }
+    }
+
+    /**
+     * Is called for every chunk of the response body, can be overridden to slow down or break the transfer.
+     */
+    protected void writeChunk(HttpExchange exchange, OutputStream out, byte[] content, int offset, int length) throws IOException {
+        if (chunkDelay > 0)
+            sleep(chunkDelay);
+        out.write(content, offset, length);
+        sentBytes.addAndGet(length);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
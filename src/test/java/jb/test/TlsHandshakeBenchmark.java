@@ -0,0 +1,68 @@
+package jb.test;
+
+import jb.test.DownloadBenchmark.DiscardingTask;
+
+import javax.net.ssl.SSLContext;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures TLS handshakes of downloading many small files from the local HTTPS {@link TestServer}.
+ * Every run uses a new downloader with the same {@link SSLContext}, so only the first handshake of
+ * the first run is a full one if sessions are resumed.
+ * <p>
+ * Usage: {@code TlsHandshakeBenchmark [<tasks> [<threads> [<runs> [<session cache size>]]]]}
+ */
+public class TlsHandshakeBenchmark {
+    private static final int CONTENT_SIZE = 4 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int nTasks = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int nThreads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int nRuns = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int cacheSize = args.length > 3 ? Integer.parseInt(args[3]) : DownloaderImpl.DEFAULT_TLS_SESSION_CACHE_SIZE;
+
+        // otherwise the test server's responses wait for delayed ACKs
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        SSLContext clientContext = TestServer.createSSLContext();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try (TestServer server = new TestServer(TestServer.createSSLContext())) {
+            List<URL> urls = new ArrayList<>();
+            for (int i = 0; i < nTasks; ++i)
+                urls.add(server.addContent("/" + i + ".bin", TestServer.randomContent(CONTENT_SIZE)));
+
+            for (int run = 0; run < nRuns; ++run) {
+                List<DownloadingTask> tasks = new ArrayList<>();
+                for (URL url : urls)
+                    tasks.add(new DiscardingTask(url));
+
+                long startTime = System.nanoTime();
+                long startCpu = getCpuTime(threads);
+                Progress progress;
+                try (DownloaderImpl downloader = new DownloaderImpl()) {
+                    downloader.setSSLContext(clientContext);
+                    downloader.setTlsSessionCacheSize(cacheSize);
+                    downloader.run(tasks, nThreads);
+                    progress = downloader.getProgress();
+                }
+                double millis = (System.nanoTime() - startTime) / 1e6;
+                double cpuMillis = (getCpuTime(threads) - startCpu) / 1e6;
+                System.out.format("run %d: %.0f ms, CPU %.0f ms, %d handshakes, %.2f ms per handshake%n", run, millis, cpuMillis,
+                        progress.getHandshakeCount(), progress.getHandshakeNanos() / 1e6 / Math.max(1, progress.getHandshakeCount()));
+            }
+        }
+    }
+
+    /**
+     * @return CPU time of all live threads of the process (client and server) in nanoseconds
+     */
+    private static long getCpuTime(ThreadMXBean threads) {
+        long total = 0;
+        for (long id : threads.getAllThreadIds())
+            total += Math.max(0, threads.getThreadCpuTime(id));
+        return total;
+    }
+}
@@ -0,0 +1,65 @@
+package jb.test;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class URLListReaderTest {
+    private static final String LIST = "# downloads\n" +
+            "http://jetbrains.com/\tok\n" +
+            "\n" +
+            "invalid|url\tfail\n" +
+            "http://eclipse.org/\n" +
+            "http://eclipse.org/\tokok\thttp://mirror1.org/\n";
+
+    private static void checkList(URLListReader reader) throws Exception {
+        assertTrue(reader.hasNext());
+        URLAndFile first = reader.next();
+        assertEquals(new URL("http://jetbrains.com/"), first.getURL());
+        assertEquals(Paths.get("ok"), first.getPath());
+        assertTrue(first.getMirrors().isEmpty());
+
+        URLAndFile second = reader.next();
+        assertEquals(new URL("http://eclipse.org/"), second.getURL());
+        assertEquals(Paths.get("okok"), second.getPath());
+        assertEquals(Collections.singletonList(new URL("http://mirror1.org/")), second.getMirrors());
+
+        assertFalse(reader.hasNext());
+        assertEquals(2, reader.getSkippedLines());
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        try (URLListReader reader = new URLListReader(new ByteArrayInputStream(LIST.getBytes(StandardCharsets.UTF_8)))) {
+            checkList(reader);
+        }
+    }
+
+    @Test
+    public void testReadGzipped() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(LIST.getBytes(StandardCharsets.UTF_8));
+        }
+        try (URLListReader reader = new URLListReader(new ByteArrayInputStream(bytes.toByteArray()))) {
+            checkList(reader);
+        }
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testReadEmpty() throws Exception {
+        try (URLListReader reader = new URLListReader(new ByteArrayInputStream(new byte[0]))) {
+            assertFalse(reader.hasNext());
+            reader.next();
+        }
+    }
+}
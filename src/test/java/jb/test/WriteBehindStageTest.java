@@ -0,0 +1,215 @@
+package jb.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindStageTest {
+    /**
+     * Runs the tasks when asked to.
+     */
+    private static class ManualExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        synchronized int size() {
+            return tasks.size();
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = poll()) != null)
+                task.run();
+        }
+
+        private synchronized Runnable poll() {
+            return tasks.poll();
+        }
+    }
+
+    private static byte[] content(int length, int seed) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; ++i)
+            content[i] = (byte) (i * 31 + seed);
+        return content;
+    }
+
+    @org.junit.Test
+    public void testOutOfOrderWrites() throws Exception {
+        Path path = Paths.get("out/write-behind.bin");
+        Files.createDirectories(path.getParent());
+        ManualExecutor executor = new ManualExecutor();
+        WriteBehindStage stage = new WriteBehindStage(executor, Long.MAX_VALUE);
+        byte[] content = content(10 * BufferPool.MIN_SIZE, 1);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+            WriteBehindStage.FileQueue queue = stage.createQueue(channel);
+            int[] order = {3, 0, 1, 7, 2, 9, 8, 4, 6, 5};
+            for (int piece : order)
+                queue.add(piece * BufferPool.MIN_SIZE, ByteBuffer.wrap(content, piece * BufferPool.MIN_SIZE, BufferPool.MIN_SIZE));
+            // a single drain takes all the queued chunks
+            assertEquals(1, executor.size());
+            assertEquals(0, Files.size(path));
+
+            executor.runAll();
+            queue.flush();
+            assertArrayEquals(content, Files.readAllBytes(path));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testLargeChunk() throws Exception {
+        Path path = Paths.get("out/write-behind.bin");
+        Files.createDirectories(path.getParent());
+        ManualExecutor executor = new ManualExecutor();
+        WriteBehindStage stage = new WriteBehindStage(executor, Long.MAX_VALUE);
+        byte[] content = content(3 * BufferPool.MAX_SIZE + 5, 2);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            WriteBehindStage.FileQueue queue = stage.createQueue(channel);
+            ByteBuffer chunk = ByteBuffer.wrap(content);
+            queue.add(0, chunk);
+            assertFalse(chunk.hasRemaining());
+
+            executor.runAll();
+            queue.flush();
+            assertArrayEquals(content, Files.readAllBytes(path));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testRequestSync() throws Exception {
+        Path path = Paths.get("out/write-behind.bin");
+        Files.createDirectories(path.getParent());
+        ManualExecutor executor = new ManualExecutor();
+        WriteBehindStage stage = new WriteBehindStage(executor, Long.MAX_VALUE);
+        byte[] content = content(BufferPool.MIN_SIZE, 6);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            WriteBehindStage.FileQueue queue = stage.createQueue(channel);
+            queue.add(0, ByteBuffer.wrap(content));
+            queue.requestSync();
+            // the sync joins the pending drain
+            assertEquals(1, executor.size());
+
+            executor.runAll();
+            queue.flush();
+            assertArrayEquals(content, Files.readAllBytes(path));
+
+            // a sync alone starts a drain too
+            queue.requestSync();
+            assertEquals(1, executor.size());
+            executor.runAll();
+            queue.flush();
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testBackpressure() throws Exception {
+        Path path = Paths.get("out/write-behind.bin");
+        Files.createDirectories(path.getParent());
+        ManualExecutor executor = new ManualExecutor();
+        WriteBehindStage stage = new WriteBehindStage(executor, 2 * BufferPool.MIN_SIZE);
+        byte[] content = content(4 * BufferPool.MIN_SIZE, 3);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            WriteBehindStage.FileQueue queue = stage.createQueue(channel);
+            queue.add(0, ByteBuffer.wrap(content, 0, 2 * BufferPool.MIN_SIZE));
+
+            AtomicBoolean added = new AtomicBoolean(false);
+            Thread producer = new Thread(() -> {
+                try {
+                    queue.add(2 * BufferPool.MIN_SIZE, ByteBuffer.wrap(content, 2 * BufferPool.MIN_SIZE, 2 * BufferPool.MIN_SIZE));
+                    added.set(true);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            producer.start();
+            producer.join(200);
+            // the queue is full until it's written
+            assertFalse(added.get());
+
+            while (producer.isAlive())
+                executor.runAll();
+            assertTrue(added.get());
+            executor.runAll();
+            queue.flush();
+            assertArrayEquals(content, Files.readAllBytes(path));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testFailure() throws Exception {
+        Path path = Paths.get("out/write-behind.bin");
+        Files.createDirectories(path.getParent());
+        ManualExecutor executor = new ManualExecutor();
+        WriteBehindStage stage = new WriteBehindStage(executor, Long.MAX_VALUE);
+        try {
+            // the channel isn't writable
+            Files.write(path, new byte[0]);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                WriteBehindStage.FileQueue queue = stage.createQueue(channel);
+                queue.add(0, ByteBuffer.wrap(content(100, 4)));
+                executor.runAll();
+                try {
+                    queue.flush();
+                    fail();
+                } catch (IOException e) {
+                    // expected
+                }
+                try {
+                    queue.add(100, ByteBuffer.wrap(content(100, 4)));
+                    fail();
+                } catch (IOException e) {
+                    // expected
+                }
+                assertEquals(0, executor.size());
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @org.junit.Test
+    public void testClosed() throws Exception {
+        Path path = Paths.get("out/write-behind.bin");
+        Files.createDirectories(path.getParent());
+        WriteBehindStage stage = new WriteBehindStage(1, Long.MAX_VALUE);
+        stage.close();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            WriteBehindStage.FileQueue queue = stage.createQueue(channel);
+            queue.add(0, ByteBuffer.wrap(content(100, 5)));
+            try {
+                queue.flush();
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package jb.test.cli;
 
 import jb.test.CmdLineInput;
+import jb.test.Durability;
+import jb.test.RandomAccessFileDownloadingTask;
 import jb.test.URLAndFile;
 import org.junit.Test;
 
@@ -10,6 +12,7 @@ import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
 
 import static org.junit.Assert.*;
 
@@ -77,6 +80,93 @@ public class CmdLineInputTest {
         }
     }
 
+    @org.junit.Test
+    public void testParseCommandLineResume() throws Exception {
+        String[] noResume = {"-u", "http://jetbrains.com/", "ok"};
+        assertFalse(CmdLineInput.parseCommandLine(noResume).isResume());
+
+        String[] resume = {"-c", "-u", "http://jetbrains.com/", "ok"};
+        assertTrue(CmdLineInput.parseCommandLine(resume).isResume());
+    }
+
+    @org.junit.Test
+    public void testParseCommandLineAttempts() throws Exception {
+        String[] noAttempts = {"-u", "http://jetbrains.com/", "ok"};
+        assertEquals(1, CmdLineInput.parseCommandLine(noAttempts).getMaxAttempts());
+
+        String[] attempts = {"-r", "5", "-u", "http://jetbrains.com/", "ok"};
+        assertEquals(5, CmdLineInput.parseCommandLine(attempts).getMaxAttempts());
+
+        String[] zero = {"-u", "http://jetbrains.com/", "ok", "-r", "0"};
+        assertNull(CmdLineInput.parseCommandLine(zero));
+
+        String[] noCount = {"-u", "http://jetbrains.com/", "ok", "-r"};
+        assertNull(CmdLineInput.parseCommandLine(noCount));
+    }
+
+    @org.junit.Test
+    public void testParseCommandLineDurability() throws Exception {
+        String[] noDurability = {"-u", "http://jetbrains.com/", "ok"};
+        CmdLineInput result = CmdLineInput.parseCommandLine(noDurability);
+        assertEquals(Durability.NONE, result.getDurability());
+        assertEquals(RandomAccessFileDownloadingTask.DEFAULT_SYNC_INTERVAL, result.getSyncInterval());
+
+        String[] periodic = {"-d", "periodic", "-s", "16", "-u", "http://jetbrains.com/", "ok"};
+        result = CmdLineInput.parseCommandLine(periodic);
+        assertEquals(Durability.PERIODIC, result.getDurability());
+        assertEquals(16 * 1024 * 1024, result.getSyncInterval());
+
+        String[] rename = {"-u", "http://jetbrains.com/", "ok", "-d", "rename"};
+        assertEquals(Durability.ATOMIC_RENAME, CmdLineInput.parseCommandLine(rename).getDurability());
+
+        String[] unknownMode = {"-u", "http://jetbrains.com/", "ok", "-d", "always"};
+        assertNull(CmdLineInput.parseCommandLine(unknownMode));
+
+        String[] zeroInterval = {"-u", "http://jetbrains.com/", "ok", "-s", "0"};
+        assertNull(CmdLineInput.parseCommandLine(zeroInterval));
+    }
+
+    @org.junit.Test
+    public void testParseCommandLineURLList() throws Exception {
+        String[] listOnly = {"-i", "urls.txt"};
+        CmdLineInput result = CmdLineInput.parseCommandLine(listOnly);
+        assertNotNull(result);
+        assertEquals(Optional.of("urls.txt"), result.getURLList());
+        assertTrue(result.getURLs().isEmpty());
+
+        String[] stdin = {"-t", "2", "-u", "http://jetbrains.com/", "ok", "-i", "-"};
+        assertEquals(Optional.of("-"), CmdLineInput.parseCommandLine(stdin).getURLList());
+
+        String[] noList = {"-u", "http://jetbrains.com/", "ok"};
+        assertFalse(CmdLineInput.parseCommandLine(noList).getURLList().isPresent());
+
+        String[] noFile = {"-t", "2", "-i"};
+        assertNull(CmdLineInput.parseCommandLine(noFile));
+
+        String[] twoLists = {"-i", "a.txt", "-i", "b.txt"};
+        assertNull(CmdLineInput.parseCommandLine(twoLists));
+
+        String[] nothingToDownload = {"-t", "2"};
+        assertNull(CmdLineInput.parseCommandLine(nothingToDownload));
+    }
+
+    @org.junit.Test
+    public void testParseCommandLineMirrors() throws Exception {
+        String[] mirrors = {"-u", "http://jetbrains.com/", "ok", "-m", "http://mirror1.org/", "-m", "http://mirror2.org/",
+                "-u", "http://eclipse.org/", "okok"};
+        CmdLineInput result = CmdLineInput.parseCommandLine(mirrors);
+        assertNotNull(result);
+        assertEquals(Arrays.asList(new URL("http://mirror1.org/"), new URL("http://mirror2.org/")),
+                result.getURLs().get(0).getMirrors());
+        assertTrue(result.getURLs().get(1).getMirrors().isEmpty());
+
+        String[] noURL = {"-m", "http://mirror1.org/", "-u", "http://jetbrains.com/", "ok"};
+        assertNull(CmdLineInput.parseCommandLine(noURL));
+
+        String[] invalidMirror = {"-u", "http://jetbrains.com/", "ok", "-m", "invalid|url"};
+        assertNull(CmdLineInput.parseCommandLine(invalidMirror));
+    }
+
     @Test
     public void testGetUsage() throws Exception {
         assertTrue(!CmdLineInput.getUsage().isEmpty());
@@ -0,0 +1,123 @@
+package jb.test;
+
+import jb.test.DownloaderImplTest.BufferTask;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class HttpClientDownloaderTest {
+    private ExecutorService service;
+    private HttpClientDownloader downloader;
+    private TestServer server;
+
+    @org.junit.Before
+    public void setUp() throws IOException {
+        service = Executors.newSingleThreadExecutor();
+        downloader = new HttpClientDownloader();
+        server = new TestServer();
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        downloader.close();
+        server.close();
+        service.shutdownNow();
+    }
+
+    private Future<?> runAsync(List<BufferTask> tasks, int nRequests) {
+        return service.submit(() -> {
+            try {
+                downloader.run(tasks, nRequests);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    private static void assertDownloaded(byte[] content, BufferTask task) {
+        assertNull(task.getFailure());
+        assertTrue(task.isSucceeded());
+        assertArrayEquals(content, task.getResult());
+    }
+
+    @org.junit.Test(timeout = 30000)
+    public void testRun() throws Exception {
+        List<BufferTask> tasks = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            byte[] content = TestServer.randomContent(1024 * (i + 1));
+            contents.add(content);
+            tasks.add(new BufferTask(server.addContent("/" + i + ".bin", content)));
+        }
+        downloader.run(tasks, 4);
+
+        for (int i = 0; i < tasks.size(); ++i)
+            assertDownloaded(contents.get(i), tasks.get(i));
+        assertEquals(0, server.getHeadCount());
+        // the server doesn't support HTTP/2, persistent HTTP/1.1 connections are reused
+        assertTrue(server.getConnectionCount() <= 4);
+        Progress progress = downloader.getProgress();
+        assertEquals(progress.getTotal().get().longValue(), progress.getDownloaded());
+    }
+
+    @org.junit.Test(timeout = 30000)
+    public void testChunkedAndRedirect() throws Exception {
+        server.setChunkedEncoding(true);
+        byte[] content = TestServer.randomContent(300 * 1024);
+        server.addContent("/chunked.bin", content);
+        BufferTask task = new BufferTask(server.addRedirect("/moved", "/chunked.bin"));
+        downloader.run(Collections.singletonList(task), 1);
+
+        assertDownloaded(content, task);
+    }
+
+    @org.junit.Test(timeout = 30000)
+    public void testNotFound() throws Exception {
+        BufferTask task = new BufferTask(server.getURL("/missing.bin"));
+        downloader.run(Collections.singletonList(task), 1);
+
+        assertFalse(task.isSucceeded());
+        assertTrue(task.getFailure() instanceof HttpStatusException);
+        assertEquals(404, ((HttpStatusException) task.getFailure()).getStatusCode());
+    }
+
+    @org.junit.Test(timeout = 30000)
+    public void testResumeAfterCancel() throws Exception {
+        server.setChunkDelay(5);
+        byte[] content = TestServer.randomContent(1024 * 1024);
+        List<BufferTask> tasks = Arrays.asList(
+                new BufferTask(server.addContent("/1.bin", content)),
+                new BufferTask(server.addContent("/2.bin", content)));
+        Future<?> f = runAsync(tasks, 2);
+        Thread.sleep(300);
+        downloader.setThreadsCount(1);
+        f.get();
+
+        assertEquals(1, server.getRangeCount());
+        for (BufferTask task : tasks) {
+            assertDownloaded(content, task);
+            assertEquals(0, task.getCancelCount());
+        }
+    }
+
+    @org.junit.Test(timeout = 30000)
+    public void testClose() throws Exception {
+        server.setChunkDelay(50);
+        BufferTask task = new BufferTask(server.addContent("/slow.bin", TestServer.randomContent(1024 * 1024)));
+        Future<?> f = runAsync(Collections.singletonList(task), 1);
+        Thread.sleep(300);
+        downloader.close();
+        f.get();
+
+        assertFalse(task.isSucceeded());
+        assertNull(task.getFailure());
+    }
+}
@@ -0,0 +1,33 @@
+package jb.test;
+
+import jb.test.DownloaderImplTest.BufferTask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VirtualThreadDownloaderTest {
+
+    @org.junit.Test(timeout = 60000)
+    public void testManyRequests() throws Exception {
+        try (TestServer server = new TestServer();
+             VirtualThreadDownloader downloader = new VirtualThreadDownloader()) {
+            server.setChunkDelay(20);
+            byte[] content = TestServer.randomContent(64 * 1024);
+            List<BufferTask> tasks = new ArrayList<>();
+            for (int i = 0; i < 1000; ++i)
+                tasks.add(new BufferTask(server.addContent("/" + i + ".bin", content)));
+            long start = System.nanoTime();
+            downloader.run(tasks, 10_000);
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+            for (BufferTask task : tasks) {
+                assertTrue(task.isSucceeded());
+                assertArrayEquals(content, task.getResult());
+            }
+            // 4 delayed chunks per response, which would take 80 s one by one
+            assertTrue("Took " + elapsed + " ms", elapsed < 30000);
+        }
+    }
+}